@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import java.util.Arrays;
+
+/**
+ * A minimal long -> long hash map using open addressing.
+ * Avoids boxing and per-entry objects, which matters for maps
+ * holding one entry per song of the library.
+ */
+class LongLongMap {
+	/**
+	 * Marks an unused slot. Song ids are always positive, so this
+	 * can never be a valid key.
+	 */
+	private static final long FREE = Long.MIN_VALUE;
+	/**
+	 * Marks a slot whose entry was removed
+	 */
+	private static final long DELETED = Long.MIN_VALUE + 1;
+
+	private long[] mKeys;
+	private long[] mValues;
+	private int mSize;
+	private int mUsed; // live + deleted slots
+
+	LongLongMap(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+	/**
+	 * Returns the value mapped to key, or `fallback' if key is unknown
+	 */
+	long get(long key, long fallback) {
+		int slot = find(key);
+		return slot < 0 ? fallback : mValues[slot];
+	}
+
+	/**
+	 * Returns true if the key exists in this map
+	 */
+	boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Maps key to value, replacing any old value
+	 */
+	void put(long key, long value) {
+		if (key == FREE || key == DELETED)
+			throw new IllegalArgumentException("Reserved key: "+key);
+
+		int mask = mKeys.length - 1;
+		int slot = mix(key) & mask;
+		int firstDeleted = -1;
+		while (mKeys[slot] != FREE) {
+			if (mKeys[slot] == key) {
+				mValues[slot] = value;
+				return;
+			}
+			if (mKeys[slot] == DELETED && firstDeleted < 0)
+				firstDeleted = slot;
+			slot = (slot + 1) & mask;
+		}
+
+		if (firstDeleted >= 0) {
+			slot = firstDeleted;
+		} else {
+			mUsed++;
+		}
+		mKeys[slot] = key;
+		mValues[slot] = value;
+		mSize++;
+
+		if (mUsed * 4 >= mKeys.length * 3)
+			rehash(capacityFor(mSize));
+	}
+
+	/**
+	 * Removes key from this map
+	 */
+	void remove(long key) {
+		int slot = find(key);
+		if (slot >= 0) {
+			mKeys[slot] = DELETED;
+			mSize--;
+		}
+	}
+
+	/**
+	 * Returns the number of entries in this map
+	 */
+	int size() {
+		return mSize;
+	}
+
+	private int find(long key) {
+		int mask = mKeys.length - 1;
+		int slot = mix(key) & mask;
+		while (mKeys[slot] != FREE) {
+			if (mKeys[slot] == key)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void rehash(int capacity) {
+		long[] keys = mKeys;
+		long[] values = mValues;
+		allocate(capacity);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != FREE && keys[i] != DELETED)
+				put(keys[i], values[i]);
+		}
+	}
+
+	private void allocate(int capacity) {
+		mKeys = new long[capacity];
+		mValues = new long[capacity];
+		Arrays.fill(mKeys, FREE);
+		mSize = 0;
+		mUsed = 0;
+	}
+
+	/**
+	 * Returns a power of two able to hold `size' entries at a load factor of 0.5
+	 */
+	private static int capacityFor(int size) {
+		int capacity = 16;
+		while (capacity < size * 2)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
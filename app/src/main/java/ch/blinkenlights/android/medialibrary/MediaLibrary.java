@@ -25,8 +25,12 @@ import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
+import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
@@ -48,6 +52,10 @@ public class MediaLibrary  {
 	public static final String TABLE_GENRES_SONGS             = "genres_songs";
 	public static final String TABLE_PLAYLISTS                = "playlists";
 	public static final String TABLE_PLAYLISTS_SONGS          = "playlists_songs";
+	public static final String TABLE_DIRECTORIES              = "directories";
+	public static final String TABLE_SEARCH                   = "songs_search";
+	public static final String TABLE_PLAY_HISTORY             = "play_history";
+	public static final String TABLE_NATIVE_IDS               = "native_ids";
 	public static final String VIEW_ARTISTS                   = "_artists";
 	public static final String VIEW_ALBUMARTISTS              = "_albumartists";
 	public static final String VIEW_COMPOSERS                 = "_composers";
@@ -71,10 +79,14 @@ public class MediaLibrary  {
 	 * Options used by the MediaScanner class
 	 */
 	public static class Preferences implements Serializable {
+		// This is the implicit UID of the original field set: keeps
+		// already stored preferences readable if new fields get added.
+		private static final long serialVersionUID = -5334488210707433859L;
 		public boolean forceBastp;
 		public boolean groupAlbumsByFolder;
 		public ArrayList<String> mediaFolders;
 		public ArrayList<String> blacklistedFolders;
+		public int scanWorkers; // number of tag extraction threads, 0 = auto
 		int _nativeLibraryCount;
 		int _nativeLastMtime;
 	}
@@ -95,6 +107,10 @@ public class MediaLibrary  {
 	 * Cached preferences, may be null
 	 */
 	private static Preferences sPreferences;
+	/**
+	 * Scanner settings of the last loaded or stored preferences, see getScanSettings()
+	 */
+	private static String sScanSettings;
 	/**
 	 * Our static backend instance
 	 */
@@ -104,9 +120,14 @@ public class MediaLibrary  {
 	 */
 	private static MediaScanner sScanner;
 	/**
-	 * The observer to call-back during database changes
+	 * The observer to call-back during database changes. Observers are
+	 * (un)registered on the UI thread while the scanner thread notifies them.
+	 */
+	private static final CopyOnWriteArrayList<LibraryObserver> sLibraryObservers = new CopyOnWriteArrayList<LibraryObserver>();
+	/**
+	 * Incremented on each notification sent to the observers
 	 */
-	private static final ArrayList<LibraryObserver> sLibraryObservers = new ArrayList<LibraryObserver>(2);
+	private static final AtomicLong sChangeCount = new AtomicLong();
 	/**
 	 * The lock we are using during object creation
 	 */
@@ -153,6 +174,7 @@ public class MediaLibrary  {
 				prefs.blacklistedFolders = discoverDefaultBlacklistedPaths(context);
 
 			sPreferences = prefs; // cached for frequent access
+			sScanSettings = getScanSettings(prefs);
 		}
 		return prefs;
 	}
@@ -247,21 +269,57 @@ public class MediaLibrary  {
 		}
 
 		sPreferences = prefs;
+
+		// Callers modify the cached object, so we compare against what we have seen last.
+		final String settings = getScanSettings(prefs);
+		if (!settings.equals(sScanSettings)) {
+			// Unchanged directories would otherwise keep files scanned with the old settings.
+			backend.forgetDirectories();
+			sScanSettings = settings;
+		}
 	}
 
 	/**
-	 * Triggers a rescan of the library
+	 * Returns the preferences which change the outcome of a scan
+	 *
+	 * @param prefs the preferences to use
+	 * @return string which differs if any of these preferences differ
+	 */
+	private static String getScanSettings(Preferences prefs) {
+		return prefs.forceBastp + "|" + prefs.groupAlbumsByFolder + "|" + prefs.mediaFolders + "|" + prefs.blacklistedFolders;
+	}
+
+	/**
+	 * Triggers a rescan of the library. Full scans started this way
+	 * read every directory again.
 	 *
 	 * @param context the context to use
 	 * @param forceFull starts a full / slow scan if true
 	 * @param drop drop the existing library if true
 	 */
 	public static void startLibraryScan(Context context, boolean forceFull, boolean drop) {
+		startLibraryScan(context, forceFull, drop, false);
+	}
+
+	/**
+	 * Triggers a rescan of the library
+	 *
+	 * @param context the context to use
+	 * @param forceFull starts a full / slow scan if true
+	 * @param drop drop the existing library if true
+	 * @param skipUnchanged if true, a full scan skips the files of directories which did not change since the last scan
+	 */
+	public static void startLibraryScan(Context context, boolean forceFull, boolean drop, boolean skipUnchanged) {
 		MediaLibraryBackend backend = getBackend(context); // also initialized sScanner
 		if (drop) {
 			sScanner.flushDatabase();
 		}
 
+		if (forceFull && !skipUnchanged) {
+			// Also retries files which were rejected by earlier scans.
+			backend.forgetDirectories();
+		}
+
 		if (forceFull) {
 			sScanner.startFullScan();
 		} else {
@@ -326,10 +384,8 @@ public class MediaLibrary  {
 	 * @param observer the content observer we are going to call on changes
 	 */
 	public static void registerLibraryObserver(LibraryObserver observer) {
-		if (sLibraryObservers.contains(observer))
+		if (!sLibraryObservers.addIfAbsent(observer))
 			throw new IllegalStateException("LibraryObserver was already registered");
-
-		sLibraryObservers.add(observer);
 	}
 
 	/**
@@ -353,9 +409,22 @@ public class MediaLibrary  {
 	 * @param ongoing whether or not to expect more of these updates soon
 	 */
 	public static void notifyObserver(LibraryObserver.Type type, long id, boolean ongoing) {
-		ArrayList<LibraryObserver> list = sLibraryObservers;
-		for (int i = list.size(); --i != -1; )
-			list.get(i).onChange(type, id, ongoing);
+		sChangeCount.incrementAndGet();
+		// Iterate over a snapshot: the list may change while we call the observers.
+		Object[] list = sLibraryObservers.toArray();
+		for (int i = list.length; --i != -1; )
+			((LibraryObserver)list[i]).onChange(type, id, ongoing);
+	}
+
+	/**
+	 * Returns a counter which changes whenever observers get notified
+	 * about a change. Data derived from the library which was computed
+	 * with the same counter value is still up to date.
+	 *
+	 * @return the current change count
+	 */
+	public static long getChangeCount() {
+		return sChangeCount.get();
 	}
 
 	/**
@@ -380,16 +449,35 @@ public class MediaLibrary  {
 	 * @return the number of affected rows
 	 */
 	public static int removeSong(Context context, long id) {
-		int rows = getBackend(context).delete(TABLE_SONGS, SongColumns._ID+"="+id, null);
+		MediaLibraryBackend.OrphanCandidates orphans = new MediaLibraryBackend.OrphanCandidates();
+		int rows = getBackend(context).deleteSong(id, orphans);
 
 		if (rows > 0) {
-			getBackend(context).cleanOrphanedEntries(true);
+			getBackend(context).cleanOrphanedEntries(orphans);
 			notifyObserver(LibraryObserver.Type.SONG, id, false);
 			notifyObserver(LibraryObserver.Type.PLAYLIST, LibraryObserver.Value.UNKNOWN, false);
 		}
 		return rows;
 	}
 
+	/**
+	 * Stores gain values which were read from the file of a song,
+	 * unless the scanner already stored them
+	 *
+	 * @param context the context to use
+	 * @param id the song id to update
+	 * @param gain the values read from the file
+	 */
+	public static void setSongGainValues(Context context, long id, GainValues gain) {
+		ContentValues v = new ContentValues();
+		v.put(MediaLibrary.SongColumns.REPLAYGAIN_TRACK, gain.track);
+		v.put(MediaLibrary.SongColumns.REPLAYGAIN_ALBUM, gain.album);
+		v.put(MediaLibrary.SongColumns.REPLAYGAIN_FOUND, gain.found ? 1 : 0);
+		v.put(MediaLibrary.SongColumns.SEEK_START, gain.seekStart);
+		v.put(MediaLibrary.SongColumns.SEEK_END, gain.seekEnd);
+		getBackend(context).update(MediaLibrary.TABLE_SONGS, v, MediaLibrary.SongColumns._ID+"="+id+" AND "+MediaLibrary.SongColumns.REPLAYGAIN_FOUND+" IS NULL", null);
+	}
+
 	/**
 	 * Updates the play or skipcount of a song
 	 *
@@ -397,9 +485,41 @@ public class MediaLibrary  {
 	 * @param id the song id to update
 	 */
 	public static void updateSongPlayCounts(Context context, long id, boolean played) {
-		final String column = played ? MediaLibrary.SongColumns.PLAYCOUNT : MediaLibrary.SongColumns.SKIPCOUNT;
-		String selection = MediaLibrary.SongColumns._ID+"="+id;
-		getBackend(context).execSQL("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+column+"="+column+"+1 WHERE "+selection);
+		getBackend(context).countPlay(id, played);
+	}
+
+	/**
+	 * Returns the most played songs
+	 *
+	 * @param context the context to use
+	 * @param limit the maximum number of songs to return
+	 * @return the song ids, most played first
+	 */
+	public static long[] getTopSongs(Context context, int limit) {
+		return getBackend(context).getTopSongs(limit);
+	}
+
+	/**
+	 * Returns the ids of a song in Androids native media database,
+	 * as seen by the last scan or lookup
+	 *
+	 * @param context the context to use
+	 * @param id the song id in our library
+	 * @return long { song_id, album_id, artist_id }, null if never looked up
+	 */
+	public static long[] getNativeIds(Context context, long id) {
+		return getBackend(context).getNativeIds(id);
+	}
+
+	/**
+	 * Stores the ids of a song in Androids native media database
+	 *
+	 * @param context the context to use
+	 * @param id the song id in our library
+	 * @param nativeIds long { song_id, album_id, artist_id }, all -1 if the song is unknown
+	 */
+	public static void setNativeIds(Context context, long id, long[] nativeIds) {
+		getBackend(context).setNativeIds(id, nativeIds);
 	}
 
 	/**
@@ -448,29 +568,7 @@ public class MediaLibrary  {
 	 * @return the number of added items
 	 */
 	public static int addToPlaylist(Context context, long playlistId, ArrayList<Long> ids) {
-		long pos = 0;
-		// First we need to get the position of the last item
-		String[] projection = { MediaLibrary.PlaylistSongColumns.POSITION };
-		String selection = MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+playlistId;
-		String order = MediaLibrary.PlaylistSongColumns.POSITION+" DESC";
-		Cursor cursor = queryLibrary(context, MediaLibrary.TABLE_PLAYLISTS_SONGS, projection, selection, null, order);
-		if (cursor.moveToFirst())
-			pos = cursor.getLong(0) + 1;
-		cursor.close();
-
-		ArrayList<ContentValues> bulk = new ArrayList<>();
-		for (Long id : ids) {
-			if (getBackend(context).getColumnFromSongId(MediaLibrary.SongColumns.MTIME, id) == 0) // no mtime? song does not exist.
-				continue;
-
-			ContentValues v = new ContentValues();
-			v.put(MediaLibrary.PlaylistSongColumns.PLAYLIST_ID, playlistId);
-			v.put(MediaLibrary.PlaylistSongColumns.SONG_ID, id);
-			v.put(MediaLibrary.PlaylistSongColumns.POSITION, pos);
-			bulk.add(v);
-			pos++;
-		}
-		int rows = getBackend(context).bulkInsert(MediaLibrary.TABLE_PLAYLISTS_SONGS, null, bulk);
+		int rows = getBackend(context).addToPlaylist(playlistId, ids);
 
 		if (rows > 0)
 			notifyObserver(LibraryObserver.Type.PLAYLIST, playlistId, false);
@@ -486,24 +584,12 @@ public class MediaLibrary  {
 	 * @return the number of deleted rows, -1 on error
 	 */
 	public static int removeFromPlaylist(Context context, String selection, String[] selectionArgs) {
-		// Grab the list of affected playlist id's before performing a delete.
-		// These are needed for the observer notification.
-		ArrayList<Long> playlists = new ArrayList<>();
-		String[] projection = { "DISTINCT("+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+")" };
-		Cursor cursor = queryLibrary(context, MediaLibrary.TABLE_PLAYLISTS_SONGS, projection, selection, selectionArgs, null);
-		while(cursor.moveToNext()) {
-			playlists.add(cursor.getLong(0));
-		}
-		cursor.close();
-
-		int affected = 0;
-		if (playlists.size() > 0) {
-			affected = getBackend(context).delete(MediaLibrary.TABLE_PLAYLISTS_SONGS, selection, selectionArgs);
-			for (long id : playlists) {
-				notifyObserver(LibraryObserver.Type.PLAYLIST, id, false);
-			}
+		// The affected playlist id's are needed for the observer notification.
+		HashSet<Long> playlists = new HashSet<>();
+		int affected = getBackend(context).removeFromPlaylists(selection, selectionArgs, playlists);
+		for (long id : playlists) {
+			notifyObserver(LibraryObserver.Type.PLAYLIST, id, false);
 		}
-
 		return affected;
 	}
 
@@ -522,6 +608,7 @@ public class MediaLibrary  {
 			ContentValues v = new ContentValues();
 			v.put(MediaLibrary.PlaylistSongColumns.PLAYLIST_ID, newId);
 			getBackend(context).update(MediaLibrary.TABLE_PLAYLISTS_SONGS, v, selection, null);
+			getBackend(context).updatePlaylistAggregates(newId);
 			removePlaylist(context, playlistId);
 		}
 
@@ -533,47 +620,123 @@ public class MediaLibrary  {
 	}
 
 	/**
-	 * Moves an item in a playlist. Note: both items should be in the
-	 * same playlist - 'fun things' will happen otherwise.
+	 * Moves an item in a playlist. Nothing happens if both items
+	 * are not in the same playlist.
 	 *
 	 * @param context the context to use
 	 * @param from the _id of the 'dragged' element
 	 * @param to the _id of the 'repressed' element
 	 */
 	public static void movePlaylistItem(Context context, long from, long to) {
-		long fromPos, toPos, playlistId;
-
-		String[] projection = { MediaLibrary.PlaylistSongColumns.POSITION, MediaLibrary.PlaylistSongColumns.PLAYLIST_ID };
-		String selection = MediaLibrary.PlaylistSongColumns._ID+"=";
-
-		// Get playlist id and position of the 'from' item
-		Cursor cursor = queryLibrary(context, MediaLibrary.TABLE_PLAYLISTS_SONGS, projection, selection+Long.toString(from), null, null);
-		cursor.moveToFirst();
-		fromPos = cursor.getLong(0);
-		playlistId = cursor.getLong(1);
-		cursor.close();
+		long playlistId = getBackend(context).movePlaylistItem(from, to);
 
-		// Get position of the target item
-		cursor = queryLibrary(context, MediaLibrary.TABLE_PLAYLISTS_SONGS, projection, selection+Long.toString(to), null, null);
-		cursor.moveToFirst();
-		toPos = cursor.getLong(0);
-		cursor.close();
+		if (playlistId != -1)
+			notifyObserver(LibraryObserver.Type.PLAYLIST, playlistId, false);
+	}
 
-		// Moving down -> We actually want to be below the target
-		if (toPos > fromPos)
-			toPos++;
+	/**
+	 * Regexp matching combining marks left over after decomposing a string
+	 */
+	private static final Pattern sCombiningMarks = Pattern.compile("\\p{M}+");
+	/**
+	 * Regexp matching whitespace
+	 */
+	private static final Pattern sWhitespace = Pattern.compile("\\s+");
 
-		// shift all rows +1
-		String setArg = MediaLibrary.PlaylistSongColumns.POSITION+"="+MediaLibrary.PlaylistSongColumns.POSITION+"+1";
-		selection = MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+playlistId+" AND "+MediaLibrary.PlaylistSongColumns.POSITION+" >= "+toPos;
-		getBackend(context).execSQL("UPDATE "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" SET "+setArg+" WHERE "+selection);
+	/**
+	 * Returns the text stored in the search index for given string.
+	 * The text is lower cased, stripped of diacritics and punctuation and
+	 * ideographic characters are split into single tokens, so that the
+	 * simple FTS tokenizer is able to match words anywhere in a string.
+	 *
+	 * @param name the string to convert, may be null
+	 * @return the normalized text, never null
+	 */
+	static String searchKeyFor(String name) {
+		if (name == null)
+			return "";
+
+		String decomposed = sCombiningMarks.matcher(Normalizer.normalize(name, Normalizer.Form.NFD)).replaceAll("");
+		StringBuilder sb = new StringBuilder(decomposed.length() + 8);
+		int len = decomposed.length();
+		boolean space = true;
+		for (int i = 0; i < len; ) {
+			int cp = decomposed.codePointAt(i);
+			i += Character.charCount(cp);
+
+			if (!Character.isLetterOrDigit(cp)) {
+				if (!space) {
+					sb.append(' ');
+					space = true;
+				}
+			} else if (cp >= 0x2E80) {
+				// CJK and similar scripts do not separate words by spaces: index each character on its own.
+				if (!space)
+					sb.append(' ');
+				sb.appendCodePoint(cp).append(' ');
+				space = true;
+			} else {
+				sb.appendCodePoint(Character.toLowerCase(cp));
+				space = false;
+			}
+		}
+		return sb.toString().trim();
+	}
 
+	/**
+	 * Returns the search index entry of a song
+	 *
+	 * @param songId the id of the song
+	 * @param title the title of the song
+	 * @param album the album of the song
+	 * @param artist the artist of the song
+	 * @param albumartist the album artist, may be null
+	 * @param composer the composer, may be null
+	 * @param genre all genres of the song, may be null
+	 * @return the values to insert into TABLE_SEARCH
+	 */
+	static ContentValues buildSearchEntry(long songId, String title, String album, String artist, String albumartist, String composer, String genre) {
 		ContentValues v = new ContentValues();
-		v.put(MediaLibrary.PlaylistSongColumns.POSITION, toPos);
-		selection = MediaLibrary.PlaylistSongColumns._ID+"="+from;
-		getBackend(context).update(MediaLibrary.TABLE_PLAYLISTS_SONGS, v, selection, null);
+		v.put(SearchColumns.DOCID,       songId);
+		v.put(SearchColumns.TITLE,       searchKeyFor(title));
+		v.put(SearchColumns.ALBUM,       searchKeyFor(album));
+		v.put(SearchColumns.ARTIST,      searchKeyFor(artist));
+		v.put(SearchColumns.ALBUMARTIST, searchKeyFor(albumartist));
+		v.put(SearchColumns.COMPOSER,    searchKeyFor(composer));
+		v.put(SearchColumns.GENRE,       searchKeyFor(genre));
+		return v;
+	}
 
-		notifyObserver(LibraryObserver.Type.PLAYLIST, playlistId, false);
+	/**
+	 * Builds an FTS MATCH expression for a search string entered by the user.
+	 * Every word must match (as a prefix) in at least one of the given columns.
+	 *
+	 * @param constraint the search string
+	 * @param columns the SearchColumns to match, null to match all columns
+	 * @return the MATCH expression, null if the constraint contains nothing to search for
+	 */
+	public static String buildSearchMatch(String constraint, String[] columns) {
+		StringBuilder sb = new StringBuilder();
+		for (String word : sWhitespace.split(constraint)) {
+			String key = searchKeyFor(word);
+			if (key.length() == 0)
+				continue;
+
+			// Multiple tokens (such as ideographs) must match as a phrase.
+			String term = (key.indexOf(' ') == -1 ? key+"*" : "\""+key+"*\"");
+			if (sb.length() != 0)
+				sb.append(' ');
+			if (columns == null) {
+				sb.append(term);
+			} else {
+				for (int i = 0; i < columns.length; i++) {
+					if (i != 0)
+						sb.append(" OR ");
+					sb.append(columns[i]).append(':').append(term);
+				}
+			}
+		}
+		return (sb.length() == 0 ? null : sb.toString());
 	}
 
 	/**
@@ -601,6 +764,20 @@ public class MediaLibrary  {
 		return MediaStore.Audio.keyFor(name);
 	}
 
+	/**
+	 * Returns the bounds of all paths starting with given prefix, to be
+	 * used as `path >= lower AND path < upper'. Unlike LIKE, such a range
+	 * is served by idx_songs_path. Note that it is case sensitive.
+	 *
+	 * @param prefix the prefix to match, must not be empty
+	 * @return String[]{ lower, upper }
+	 */
+	public static String[] getPathPrefixRange(String prefix) {
+		int last = prefix.length() - 1;
+		String upper = prefix.substring(0, last) + (char)(prefix.charAt(last) + 1);
+		return new String[]{ prefix, upper };
+	}
+
 	/**
 	 * Simple 63 bit hash function for strings
 	 *
@@ -736,6 +913,27 @@ public class MediaLibrary  {
 		 * Various flags of this entry, see SONG_FLAG...
 		 */
 		String FLAGS = "_flags";
+		/**
+		 * Track gain in dB, as found by the scanner
+		 */
+		String REPLAYGAIN_TRACK = "replaygain_track";
+		/**
+		 * Album gain in dB, as found by the scanner
+		 */
+		String REPLAYGAIN_ALBUM = "replaygain_album";
+		/**
+		 * 1 if the file had any gain information, 0 if not.
+		 * NULL if the file was not inspected for gain information yet.
+		 */
+		String REPLAYGAIN_FOUND = "replaygain_found";
+		/**
+		 * Position to start playback at, in ms
+		 */
+		String SEEK_START = "seek_start";
+		/**
+		 * Position to stop playback at, in ms. 0 if not set
+		 */
+		String SEEK_END = "seek_end";
 	}
 
 	// Columns of Album entries
@@ -760,6 +958,26 @@ public class MediaLibrary  {
 		 * The year of this album
 		 */
 		String PRIMARY_ALBUM_YEAR = "primary_album_year";
+		/**
+		 * The summed up duration of all songs of this album
+		 */
+		String TOTAL_DURATION = "total_duration";
+		/**
+		 * The number of songs of this album
+		 */
+		String SONG_COUNT = "song_count";
+		/**
+		 * The number of distinct discs of this album
+		 */
+		String DISC_COUNT = "disc_count";
+		/**
+		 * The lowest year of all songs of this album
+		 */
+		String MIN_YEAR = "min_year";
+		/**
+		 * The highest year of all songs of this album
+		 */
+		String MAX_YEAR = "max_year";
 		/**
 		 * The mtime of this item
 		 */
@@ -884,6 +1102,14 @@ public class MediaLibrary  {
 		 * Sortable column for name
 		 */
 		String NAME_SORT = "name_sort";
+		/**
+		 * The summed up duration of all songs of this playlist
+		 */
+		String TOTAL_DURATION = "total_duration";
+		/**
+		 * The number of entries of this playlist
+		 */
+		String SONG_COUNT = "song_count";
 	}
 
 	// Song <-> Playlist mapping
@@ -906,6 +1132,102 @@ public class MediaLibrary  {
 		String POSITION = "position";
 	}
 
+	// Directories seen by the scanner
+	public interface DirectoryColumns {
+		/**
+		 * The id of this directory, the hash63 of its path
+		 */
+		String _ID = SongColumns._ID;
+		/**
+		 * The id of the parent directory
+		 */
+		String PARENT_ID = "parent_id";
+		/**
+		 * The path of this directory
+		 */
+		String PATH = "path";
+		/**
+		 * The mtime (in ms) of the directory during the last scan, 0 if unknown
+		 */
+		String MTIME = "mtime";
+		/**
+		 * The number of entries found in this directory during the last scan
+		 */
+		String CHILD_COUNT = "child_count";
+	}
+
+	// Columns of the full text search index, one row per song
+	public interface SearchColumns {
+		/**
+		 * The id of the song, the rowid of the FTS table
+		 */
+		String DOCID = "docid";
+		/**
+		 * The title of the song
+		 */
+		String TITLE = "title";
+		/**
+		 * The album of the song
+		 */
+		String ALBUM = "album";
+		/**
+		 * The artist of the song
+		 */
+		String ARTIST = "artist";
+		/**
+		 * The album artist of the song
+		 */
+		String ALBUMARTIST = "albumartist";
+		/**
+		 * The composer of the song
+		 */
+		String COMPOSER = "composer";
+		/**
+		 * All genres of the song
+		 */
+		String GENRE = "genre";
+	}
+
+	// Columns of the play history, one row per played or skipped song
+	public interface PlayHistoryColumns {
+		/**
+		 * The id of this entry, ascending in playback order
+		 */
+		String _ID = SongColumns._ID;
+		/**
+		 * The song which was played
+		 */
+		String SONG_ID = "song_id";
+		/**
+		 * The time of playback, in seconds since the epoch
+		 */
+		String TIME = "time";
+		/**
+		 * 1 if the song was played, 0 if it was skipped
+		 */
+		String PLAYED = "played";
+	}
+
+	// Ids of a song in Androids native media database
+	public interface NativeIdColumns {
+		/**
+		 * The id of the song in our library
+		 */
+		String _ID = SongColumns._ID;
+		/**
+		 * The id of the song in the MediaStore, -1 if not found
+		 */
+		String NATIVE_SONG_ID = "native_song_id";
+		/**
+		 * The album id of the song in the MediaStore
+		 */
+		String NATIVE_ALBUM_ID = "native_album_id";
+		/**
+		 * The artist id of the song in the MediaStore
+		 */
+		String NATIVE_ARTIST_ID = "native_artist_id";
+	}
+
 	// Preference keys
 	public interface PreferenceColumns {
 		/**
@@ -21,13 +21,60 @@ import android.content.Context;
 import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.database.Cursor;
 import android.util.Log;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class MediaLibraryBackend extends SQLiteOpenHelper {
+	/**
+	 * Ids of entries which might have become orphaned: filled by deleteSong()
+	 * and consumed by cleanOrphanedEntries(OrphanCandidates).
+	 */
+	static class OrphanCandidates {
+		final HashSet<Long> songs = new HashSet<>();
+		final HashSet<Long> albums = new HashSet<>();
+		final HashSet<Long> contributors = new HashSet<>();
+		final HashSet<Long> genres = new HashSet<>();
+
+		boolean isEmpty() {
+			return songs.isEmpty() && albums.isEmpty() && contributors.isEmpty() && genres.isEmpty();
+		}
+
+		void clear() {
+			songs.clear();
+			albums.clear();
+			contributors.clear();
+			genres.clear();
+		}
+
+		void addAll(OrphanCandidates other) {
+			songs.addAll(other.songs);
+			albums.addAll(other.albums);
+			contributors.addAll(other.contributors);
+			genres.addAll(other.genres);
+		}
+	}
+
+	/**
+	 * Distance between the positions of playlist entries added in a row.
+	 * Moved entries take the position in the middle of a gap, so a
+	 * playlist only needs to be renumbered once a gap is used up.
+	 */
+	static final long PLAYLIST_POSITION_GAP = 1 << 16;
+	/**
+	 * Number of entries to keep in the play history
+	 */
+	static final int PLAY_HISTORY_SIZE = 1000;
+	/**
+	 * Maximum number of ids to check in one IN (...) query
+	 */
+	private static final int IN_QUERY_CHUNK_SIZE = 500;
 	/**
 	 * Enables or disables debugging
 	 */
@@ -35,7 +82,7 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	/**
 	 * The database version we are using
 	 */
-	private static final int DATABASE_VERSION = 20190210;
+	private static final int DATABASE_VERSION = 20261026;
 	/**
 	 * on-disk file to store the database
 	 */
@@ -110,6 +157,65 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		return mtime;
 	}
 
+	/**
+	 * Returns the `long' values stored in the columns of the given id,
+	 * all values are 0 if the song does not exist.
+	 *
+	 * @param columns the columns to return of `id'
+	 * @param id the song id to query
+	 * @return the values of `columns'
+	 */
+	long[] getColumnsFromSongId(String[] columns, long id) {
+		long[] result = new long[columns.length];
+		Cursor cursor = query(false, MediaLibrary.TABLE_SONGS, columns, MediaLibrary.SongColumns._ID+"="+Long.toString(id), null, null, null, null, "1");
+		if (cursor.moveToFirst()) {
+			for (int i = 0; i < columns.length; i++) {
+				result[i] = cursor.getLong(i);
+			}
+		}
+		cursor.close();
+		return result;
+	}
+
+	/**
+	 * Returns the mtime and flags of every song in the library.
+	 * Values are packed as (mtime << 32 | flags), see snapshotMtime()
+	 * and snapshotFlags().
+	 *
+	 * @return a map of song id -> packed mtime and flags
+	 */
+	LongLongMap getSongSnapshot() {
+		String[] projection = { MediaLibrary.SongColumns._ID, MediaLibrary.SongColumns.MTIME, MediaLibrary.SongColumns.FLAGS };
+		Cursor cursor = getReadableDatabase().query(MediaLibrary.TABLE_SONGS, projection, null, null, null, null, null);
+		LongLongMap snapshot = new LongLongMap(cursor.getCount());
+		while (cursor.moveToNext()) {
+			snapshot.put(cursor.getLong(0), packSnapshot(cursor.getLong(1), cursor.getLong(2)));
+		}
+		cursor.close();
+		return snapshot;
+	}
+
+	/**
+	 * Packs an mtime (in seconds) and the flags of a song into a single long
+	 */
+	static long packSnapshot(long mtime, long flags) {
+		return (mtime << 32) | (flags & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the mtime of a packed snapshot value
+	 */
+	static long snapshotMtime(long packed) {
+		return packed >>> 32;
+	}
+
+	/**
+	 * Returns the flags of a packed snapshot value
+	 */
+	static long snapshotFlags(long packed) {
+		return packed & 0xFFFFFFFFL;
+	}
+
 	/**
 	 * Wrapper for SQLiteDatabse.delete() function
 	 *
@@ -172,6 +278,61 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	void setPendingDeletion() {
 		SQLiteDatabase dbh = getWritableDatabase();
 		dbh.execSQL("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+MediaLibrary.SongColumns.MTIME+"="+PENDING_DELETION_MTIME);
+		// Every directory must be read again to get the songs back.
+		dbh.delete(MediaLibrary.TABLE_DIRECTORIES, null, null);
+	}
+
+	/**
+	 * Clears the directory index, so that the next full scan
+	 * inspects all files again
+	 */
+	void forgetDirectories() {
+		getWritableDatabase().delete(MediaLibrary.TABLE_DIRECTORIES, null, null);
+	}
+
+	/**
+	 * Returns the mtime and child count of a directory as seen during the last scan
+	 *
+	 * @param id the id of the directory
+	 * @return long[]{ mtime, child_count }, null if the directory is unknown
+	 */
+	long[] getDirectory(long id) {
+		long[] result = null;
+		String[] projection = { MediaLibrary.DirectoryColumns.MTIME, MediaLibrary.DirectoryColumns.CHILD_COUNT };
+		Cursor cursor = getReadableDatabase().query(MediaLibrary.TABLE_DIRECTORIES, projection, MediaLibrary.DirectoryColumns._ID+"="+id, null, null, null, null);
+		if (cursor.moveToFirst())
+			result = new long[]{ cursor.getLong(0), cursor.getLong(1) };
+		cursor.close();
+		return result;
+	}
+
+	/**
+	 * Returns the paths of all known subdirectories of a directory
+	 *
+	 * @param parentId the id of the parent directory
+	 * @return list of paths
+	 */
+	ArrayList<String> getSubdirectories(long parentId) {
+		ArrayList<String> result = new ArrayList<>();
+		String[] projection = { MediaLibrary.DirectoryColumns.PATH };
+		Cursor cursor = getReadableDatabase().query(MediaLibrary.TABLE_DIRECTORIES, projection, MediaLibrary.DirectoryColumns.PARENT_ID+"="+parentId, null, null, null, null);
+		while (cursor.moveToNext()) {
+			result.add(cursor.getString(0));
+		}
+		cursor.close();
+		return result;
+	}
+
+	/**
+	 * Removes a directory and everything below it from the directory index
+	 *
+	 * @param path the path of the directory to remove
+	 */
+	void removeDirectoryTree(String path) {
+		final String prefix = path + "/";
+		getWritableDatabase().delete(MediaLibrary.TABLE_DIRECTORIES,
+			MediaLibrary.DirectoryColumns.PATH+"=? OR substr("+MediaLibrary.DirectoryColumns.PATH+", 1, "+prefix.length()+")=?",
+			new String[]{ path, prefix });
 	}
 
 	/**
@@ -184,8 +345,15 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 
 		// Remove all songs which are marked for deletion and playlist orphaned playlist entries.
 		if (fullCleanup) {
-			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns.MTIME+"="+PENDING_DELETION_MTIME);
+			int purged = dbh.delete(MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns.MTIME+"="+PENDING_DELETION_MTIME, null);
+			if (purged > 0) {
+				// We do not know which directories contained these songs, so none of them may be trusted.
+				dbh.delete(MediaLibrary.TABLE_DIRECTORIES, null, null);
+			}
 			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" WHERE "+MediaLibrary.PlaylistSongColumns.SONG_ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_SEARCH+" WHERE "+MediaLibrary.SearchColumns.DOCID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_PLAY_HISTORY+" WHERE "+MediaLibrary.PlayHistoryColumns.SONG_ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
+			dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_NATIVE_IDS+" WHERE "+MediaLibrary.NativeIdColumns._ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
 		}
 
 		// And remove any orphaned references.
@@ -194,6 +362,106 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_GENRES+" WHERE "+MediaLibrary.GenreColumns._ID+" NOT IN (SELECT "+MediaLibrary.GenreSongColumns._GENRE_ID+" FROM "+MediaLibrary.TABLE_GENRES_SONGS+");");
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+" NOT IN (SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS+");");
 		dbh.execSQL("DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS+" WHERE "+MediaLibrary.ContributorColumns._ID+" NOT IN (SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+");");
+
+		// Consistency check: the incremental updates may have missed
+		// songs removed by the queries above.
+		dbh.execSQL(MediaSchema.UPDATE_ALBUM_AGGREGATES);
+		dbh.execSQL(MediaSchema.UPDATE_PLAYLIST_AGGREGATES);
+	}
+
+	/**
+	 * Removes a song, its search index entry and its album, contributor and genre mappings, but
+	 * keeps any playlist references. The ids of all entries which might
+	 * be orphaned now are added to `orphans'.
+	 *
+	 * @param songId the song to remove
+	 * @param orphans receives the ids to pass to cleanOrphanedEntries()
+	 * @return the number of deleted songs
+	 */
+	int deleteSong(long songId, OrphanCandidates orphans) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		final String[] args = { Long.toString(songId) };
+
+		Cursor cursor = dbh.query(MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns.ALBUM_ID }, MediaLibrary.SongColumns._ID+"=?", args, null, null, null);
+		while (cursor.moveToNext()) {
+			orphans.albums.add(cursor.getLong(0));
+		}
+		cursor.close();
+
+		cursor = dbh.query(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, new String[]{ MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID }, MediaLibrary.ContributorSongColumns.SONG_ID+"=?", args, null, null, null);
+		while (cursor.moveToNext()) {
+			orphans.contributors.add(cursor.getLong(0));
+		}
+		cursor.close();
+
+		cursor = dbh.query(MediaLibrary.TABLE_GENRES_SONGS, new String[]{ MediaLibrary.GenreSongColumns._GENRE_ID }, MediaLibrary.GenreSongColumns.SONG_ID+"=?", args, null, null, null);
+		while (cursor.moveToNext()) {
+			orphans.genres.add(cursor.getLong(0));
+		}
+		cursor.close();
+
+		dbh.delete(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, MediaLibrary.ContributorSongColumns.SONG_ID+"=?", args);
+		dbh.delete(MediaLibrary.TABLE_GENRES_SONGS, MediaLibrary.GenreSongColumns.SONG_ID+"=?", args);
+		dbh.delete(MediaLibrary.TABLE_SEARCH, MediaLibrary.SearchColumns.DOCID+"=?", args);
+		int rows = dbh.delete(MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns._ID+"=?", args);
+		orphans.songs.add(songId);
+		return rows;
+	}
+
+	/**
+	 * Purges entries which were orphaned by deleteSong() calls. Only the
+	 * given candidates are checked, so this is much cheaper than a full
+	 * cleanOrphanedEntries() run. The aggregates of the remaining albums
+	 * and playlists are updated. The candidates are cleared afterwards.
+	 *
+	 * @param orphans the candidates to check
+	 */
+	void cleanOrphanedEntries(OrphanCandidates orphans) {
+		if (orphans.isEmpty())
+			return;
+
+		SQLiteDatabase dbh = getWritableDatabase();
+		dbh.beginTransactionNonExclusive();
+		try {
+			HashSet<Long> playlists = getPlaylistsContaining(dbh, orphans.songs);
+			// Songs which did not come back also lose their playlist references and history.
+			purgeOrphans(dbh, orphans.songs, "DELETE FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" WHERE "+MediaLibrary.PlaylistSongColumns.SONG_ID+"=?1"
+			             +" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns._ID+"=?1)");
+			purgeOrphans(dbh, orphans.songs, "DELETE FROM "+MediaLibrary.TABLE_PLAY_HISTORY+" WHERE "+MediaLibrary.PlayHistoryColumns.SONG_ID+"=?1"
+			             +" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns._ID+"=?1)");
+			purgeOrphans(dbh, orphans.songs, "DELETE FROM "+MediaLibrary.TABLE_NATIVE_IDS+" WHERE "+MediaLibrary.NativeIdColumns._ID+"=?1"
+			             +" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns._ID+"=?1)");
+			purgeOrphans(dbh, orphans.albums, "DELETE FROM "+MediaLibrary.TABLE_ALBUMS+" WHERE "+MediaLibrary.AlbumColumns._ID+"=?1"
+			             +" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_SONGS+" WHERE "+MediaLibrary.SongColumns.ALBUM_ID+"=?1)");
+			purgeOrphans(dbh, orphans.contributors, "DELETE FROM "+MediaLibrary.TABLE_CONTRIBUTORS+" WHERE "+MediaLibrary.ContributorColumns._ID+"=?1"
+			             +" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+" WHERE "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+"=?1)");
+			purgeOrphans(dbh, orphans.genres, "DELETE FROM "+MediaLibrary.TABLE_GENRES+" WHERE "+MediaLibrary.GenreColumns._ID+"=?1"
+			             +" AND NOT EXISTS (SELECT 1 FROM "+MediaLibrary.TABLE_GENRES_SONGS+" WHERE "+MediaLibrary.GenreSongColumns._GENRE_ID+"=?1)");
+			updateAggregates(dbh, MediaSchema.UPDATE_ALBUM_AGGREGATES, MediaLibrary.AlbumColumns._ID, orphans.albums);
+			updateAggregates(dbh, MediaSchema.UPDATE_PLAYLIST_AGGREGATES, MediaLibrary.PlaylistColumns._ID, playlists);
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+		orphans.clear();
+	}
+
+	/**
+	 * Runs `sql' once for each id, binding the id to ?1
+	 */
+	private void purgeOrphans(SQLiteDatabase dbh, HashSet<Long> ids, String sql) {
+		if (ids.isEmpty())
+			return;
+
+		SQLiteStatement stmt = dbh.compileStatement(sql);
+		try {
+			for (long id : ids) {
+				stmt.bindLong(1, id);
+				stmt.executeUpdateDelete();
+			}
+		} finally {
+			stmt.close();
+		}
 	}
 
 	/**
@@ -228,6 +496,461 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 		return count;
 	}
 
+	/**
+	 * Writes all queued operations of a scan batch in one transaction
+	 * and clears the batch afterwards.
+	 *
+	 * @param batch the batch to apply
+	 * @param orphans receives the ids of possibly orphaned entries
+	 */
+	void applyBatch(MediaScanBatch batch, OrphanCandidates orphans) {
+		if (batch.isEmpty())
+			return;
+
+		SQLiteDatabase dbh = getWritableDatabase();
+		// Everything touched by this batch, used to update the aggregates.
+		OrphanCandidates touched = new OrphanCandidates();
+		// Entries which might be orphaned by deleted songs.
+		OrphanCandidates deleted = new OrphanCandidates();
+
+		dbh.beginTransactionNonExclusive();
+		try {
+			for (MediaScanBatch.Op op : batch.getOps()) {
+				switch (op.type) {
+					case MediaScanBatch.OP_DELETE_SONG:
+						deleteSong(op.id, deleted);
+						break;
+					case MediaScanBatch.OP_INSERT:
+					case MediaScanBatch.OP_UPSERT:
+						if (MediaLibrary.TABLE_SONGS.equals(op.table)) {
+							touched.songs.add(op.values.getAsLong(MediaLibrary.SongColumns._ID));
+							touched.albums.add(op.values.getAsLong(MediaLibrary.SongColumns.ALBUM_ID));
+						}
+						long result = -1;
+						try {
+							result = dbh.insertOrThrow(op.table, null, op.values);
+						} catch (Exception e) {
+							// avoid logspam as done by insert()
+						}
+						if (result == -1 && op.type == MediaScanBatch.OP_UPSERT)
+							dbh.update(op.table, op.update, op.where, null);
+						break;
+				}
+			}
+			touched.addAll(deleted);
+			updateAggregates(dbh, MediaSchema.UPDATE_ALBUM_AGGREGATES, MediaLibrary.AlbumColumns._ID, touched.albums);
+			updateAggregates(dbh, MediaSchema.UPDATE_PLAYLIST_AGGREGATES, MediaLibrary.PlaylistColumns._ID, getPlaylistsContaining(dbh, touched.songs));
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+		orphans.addAll(deleted);
+		batch.clear();
+	}
+
+	/**
+	 * Recomputes the aggregate columns of a single playlist
+	 *
+	 * @param playlistId the playlist to update
+	 */
+	void updatePlaylistAggregates(long playlistId) {
+		getWritableDatabase().execSQL(MediaSchema.UPDATE_PLAYLIST_AGGREGATES+" WHERE "+MediaLibrary.PlaylistColumns._ID+"="+playlistId);
+	}
+
+	/**
+	 * Runs one of the aggregate UPDATE statements of MediaSchema for the given ids
+	 *
+	 * @param dbh the database to use
+	 * @param sql the update statement, without WHERE clause
+	 * @param idColumn the id column of the updated table
+	 * @param ids the ids of the rows to update
+	 */
+	private void updateAggregates(SQLiteDatabase dbh, String sql, String idColumn, HashSet<Long> ids) {
+		for (String chunk : joinIds(ids)) {
+			dbh.execSQL(sql+" WHERE "+idColumn+" IN ("+chunk+")");
+		}
+	}
+
+	/**
+	 * Returns the ids of all playlists referencing any of the given songs
+	 */
+	private HashSet<Long> getPlaylistsContaining(SQLiteDatabase dbh, HashSet<Long> songIds) {
+		HashSet<Long> result = new HashSet<>();
+		for (String chunk : joinIds(songIds)) {
+			Cursor cursor = dbh.query(true, MediaLibrary.TABLE_PLAYLISTS_SONGS, new String[]{ MediaLibrary.PlaylistSongColumns.PLAYLIST_ID },
+			                          MediaLibrary.PlaylistSongColumns.SONG_ID+" IN ("+chunk+")", null, null, null, null, null);
+			while (cursor.moveToNext()) {
+				result.add(cursor.getLong(0));
+			}
+			cursor.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Joins ids into comma separated lists of at most IN_QUERY_CHUNK_SIZE
+	 * elements, to be used in IN (...) clauses
+	 */
+	private static ArrayList<String> joinIds(HashSet<Long> ids) {
+		ArrayList<String> result = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		int count = 0;
+		for (Long id : ids) {
+			if (count > 0)
+				sb.append(',');
+			sb.append(id);
+			if (++count == IN_QUERY_CHUNK_SIZE) {
+				result.add(sb.toString());
+				sb.setLength(0);
+				count = 0;
+			}
+		}
+		if (count > 0)
+			result.add(sb.toString());
+		return result;
+	}
+
+	/**
+	 * Returns the cached MediaStore ids of a song
+	 *
+	 * @param songId the song to look up
+	 * @return long { song_id, album_id, artist_id }, null if not cached
+	 */
+	long[] getNativeIds(long songId) {
+		long[] result = null;
+		String[] projection = { MediaLibrary.NativeIdColumns.NATIVE_SONG_ID, MediaLibrary.NativeIdColumns.NATIVE_ALBUM_ID, MediaLibrary.NativeIdColumns.NATIVE_ARTIST_ID };
+		Cursor cursor = getReadableDatabase().query(MediaLibrary.TABLE_NATIVE_IDS, projection, MediaLibrary.NativeIdColumns._ID+"="+songId, null, null, null, null);
+		if (cursor.moveToFirst())
+			result = new long[]{ cursor.getLong(0), cursor.getLong(1), cursor.getLong(2) };
+		cursor.close();
+		return result;
+	}
+
+	/**
+	 * Caches the MediaStore ids of a song
+	 *
+	 * @param songId the song to update
+	 * @param nativeIds long { song_id, album_id, artist_id }
+	 */
+	void setNativeIds(long songId, long[] nativeIds) {
+		getWritableDatabase().insertWithOnConflict(MediaLibrary.TABLE_NATIVE_IDS, null, buildNativeIds(songId, nativeIds), SQLiteDatabase.CONFLICT_REPLACE);
+	}
+
+	/**
+	 * Drops the cached native ids of songs which were not found in the
+	 * MediaStore and of the given MediaStore songs, so that they get
+	 * looked up again
+	 *
+	 * @param nativeSongIds the changed MediaStore songs, may be empty
+	 */
+	void forgetNativeIds(Collection<Long> nativeSongIds) {
+		StringBuilder sb = new StringBuilder(MediaLibrary.NativeIdColumns.NATIVE_SONG_ID+" IN (-1");
+		for (long id : nativeSongIds)
+			sb.append(',').append(id);
+		sb.append(')');
+		getWritableDatabase().delete(MediaLibrary.TABLE_NATIVE_IDS, sb.toString(), null);
+	}
+
+	/**
+	 * Returns the row of the native id cache for a song
+	 *
+	 * @param songId the song id in our library
+	 * @param nativeIds long { song_id, album_id, artist_id }
+	 */
+	static ContentValues buildNativeIds(long songId, long[] nativeIds) {
+		ContentValues v = new ContentValues();
+		v.put(MediaLibrary.NativeIdColumns._ID, songId);
+		v.put(MediaLibrary.NativeIdColumns.NATIVE_SONG_ID, nativeIds[0]);
+		v.put(MediaLibrary.NativeIdColumns.NATIVE_ALBUM_ID, nativeIds[1]);
+		v.put(MediaLibrary.NativeIdColumns.NATIVE_ARTIST_ID, nativeIds[2]);
+		return v;
+	}
+
+	/**
+	 * Increments the play or skip count of a song and
+	 * appends it to the play history. Songs which are not
+	 * in the library are ignored.
+	 *
+	 * @param songId the song which was played or skipped
+	 * @param played true if the song was played, false if skipped
+	 */
+	void countPlay(long songId, boolean played) {
+		final String column = played ? MediaLibrary.SongColumns.PLAYCOUNT : MediaLibrary.SongColumns.SKIPCOUNT;
+		SQLiteDatabase dbh = getWritableDatabase();
+
+		dbh.beginTransactionNonExclusive();
+		try {
+			SQLiteStatement stmt = dbh.compileStatement("UPDATE "+MediaLibrary.TABLE_SONGS+" SET "+column+"="+column+"+1 WHERE "+MediaLibrary.SongColumns._ID+"=?");
+			int updated;
+			try {
+				stmt.bindLong(1, songId);
+				updated = stmt.executeUpdateDelete();
+			} finally {
+				stmt.close();
+			}
+			// Not a library song: there is nothing to count and no history entry to keep.
+			if (updated == 0)
+				return;
+
+			ContentValues v = new ContentValues();
+			v.put(MediaLibrary.PlayHistoryColumns.SONG_ID, songId);
+			v.put(MediaLibrary.PlayHistoryColumns.PLAYED, played ? 1 : 0);
+			long id = dbh.insert(MediaLibrary.TABLE_PLAY_HISTORY, null, v);
+			// Drop the oldest entries, the rowid only grows.
+			if (id > PLAY_HISTORY_SIZE)
+				dbh.delete(MediaLibrary.TABLE_PLAY_HISTORY, MediaLibrary.PlayHistoryColumns._ID+"<="+(id - PLAY_HISTORY_SIZE), null);
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+	}
+
+	/**
+	 * Returns the most played songs, served by idx_songs_playcount
+	 *
+	 * @param limit the maximum number of songs to return
+	 * @return the song ids, most played first
+	 */
+	long[] getTopSongs(int limit) {
+		return queryIds(buildTopSongsQuery(limit));
+	}
+
+	/**
+	 * Returns the query used by getTopSongs()
+	 *
+	 * @param limit the maximum number of songs to return
+	 */
+	static String buildTopSongsQuery(int limit) {
+		return "SELECT "+MediaLibrary.SongColumns._ID+" FROM "+MediaLibrary.TABLE_SONGS
+		       +" WHERE "+MediaLibrary.SongColumns.PLAYCOUNT+" > 0"
+		       +" ORDER BY "+MediaLibrary.SongColumns.PLAYCOUNT+" DESC LIMIT "+limit;
+	}
+
+	/**
+	 * Runs a raw query returning a single id column.
+	 * Unlike query(), this does not count the rows first.
+	 */
+	private long[] queryIds(String sql) {
+		Cursor cursor = getReadableDatabase().rawQuery(sql, null);
+		long[] result = new long[16];
+		int count = 0;
+		while (cursor.moveToNext()) {
+			if (count == result.length)
+				result = Arrays.copyOf(result, count * 2);
+			result[count++] = cursor.getLong(0);
+		}
+		cursor.close();
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Appends songs to a playlist in one transaction.
+	 * Ids of songs which do not exist in the library are skipped.
+	 *
+	 * @param playlistId the playlist to add to
+	 * @param ids the song ids to add, in order
+	 * @return the number of added entries
+	 */
+	int addToPlaylist(long playlistId, ArrayList<Long> ids) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		int count = 0;
+
+		dbh.beginTransactionNonExclusive();
+		try {
+			HashSet<Long> existing = filterExistingSongs(dbh, ids);
+			long pos = 0;
+			Cursor cursor = dbh.rawQuery("SELECT MAX("+MediaLibrary.PlaylistSongColumns.POSITION+") FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS
+			                             +" WHERE "+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+playlistId, null);
+			if (cursor.moveToFirst() && !cursor.isNull(0))
+				pos = cursor.getLong(0);
+			cursor.close();
+
+			SQLiteStatement stmt = dbh.compileStatement("INSERT INTO "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" ("+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+", "
+			                                            +MediaLibrary.PlaylistSongColumns.SONG_ID+", "+MediaLibrary.PlaylistSongColumns.POSITION+") VALUES (?, ?, ?)");
+			try {
+				for (Long id : ids) {
+					if (!existing.contains(id))
+						continue;
+					pos += PLAYLIST_POSITION_GAP;
+					stmt.bindLong(1, playlistId);
+					stmt.bindLong(2, id);
+					stmt.bindLong(3, pos);
+					if (stmt.executeInsert() != -1)
+						count++;
+				}
+			} finally {
+				stmt.close();
+			}
+			if (count > 0)
+				updatePlaylistAggregates(playlistId);
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+		return count;
+	}
+
+	/**
+	 * Removes playlist entries in one transaction
+	 *
+	 * @param selection the selection for the entries to drop
+	 * @param selectionArgs arguments for `selection'
+	 * @param playlists receives the ids of all affected playlists
+	 * @return the number of deleted entries
+	 */
+	int removeFromPlaylists(String selection, String[] selectionArgs, HashSet<Long> playlists) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		int count = 0;
+
+		dbh.beginTransactionNonExclusive();
+		try {
+			Cursor cursor = dbh.query(true, MediaLibrary.TABLE_PLAYLISTS_SONGS, new String[]{ MediaLibrary.PlaylistSongColumns.PLAYLIST_ID },
+			                          selection, selectionArgs, null, null, null, null);
+			while (cursor.moveToNext()) {
+				playlists.add(cursor.getLong(0));
+			}
+			cursor.close();
+
+			if (playlists.size() > 0)
+				count = dbh.delete(MediaLibrary.TABLE_PLAYLISTS_SONGS, selection, selectionArgs);
+			updateAggregates(dbh, MediaSchema.UPDATE_PLAYLIST_AGGREGATES, MediaLibrary.PlaylistColumns._ID, playlists);
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+		return count;
+	}
+
+	/**
+	 * Moves a playlist entry next to another entry of the same playlist.
+	 * Only the moved entry gets a new position, unless there is no free
+	 * position left next to the target: the playlist is renumbered in
+	 * this case.
+	 *
+	 * @param from the _id of the entry to move
+	 * @param to the _id of the entry to move to: `from' ends up above it when
+	 *        moving up and below it when moving down
+	 * @return the id of the playlist, -1 if the entries were not found
+	 */
+	long movePlaylistItem(long from, long to) {
+		SQLiteDatabase dbh = getWritableDatabase();
+		long playlistId = -1;
+
+		dbh.beginTransactionNonExclusive();
+		try {
+			long[] fromEntry = getPlaylistEntry(dbh, from);
+			long[] toEntry = getPlaylistEntry(dbh, to);
+			if (fromEntry != null && toEntry != null && fromEntry[0] == toEntry[0]) {
+				playlistId = fromEntry[0];
+				boolean below = toEntry[1] > fromEntry[1];
+
+				Long pos = getFreePosition(dbh, playlistId, from, toEntry[1], below);
+				if (pos == null) {
+					renumberPlaylist(dbh, playlistId);
+					pos = getFreePosition(dbh, playlistId, from, getPlaylistEntry(dbh, to)[1], below);
+				}
+
+				ContentValues v = new ContentValues();
+				v.put(MediaLibrary.PlaylistSongColumns.POSITION, pos);
+				dbh.update(MediaLibrary.TABLE_PLAYLISTS_SONGS, v, MediaLibrary.PlaylistSongColumns._ID+"="+from, null);
+			}
+			dbh.setTransactionSuccessful();
+		} finally {
+			dbh.endTransaction();
+		}
+		return playlistId;
+	}
+
+	/**
+	 * Returns the playlist id and position of a playlist entry, null if it does not exist
+	 */
+	private long[] getPlaylistEntry(SQLiteDatabase dbh, long id) {
+		long[] result = null;
+		Cursor cursor = dbh.query(MediaLibrary.TABLE_PLAYLISTS_SONGS, new String[]{ MediaLibrary.PlaylistSongColumns.PLAYLIST_ID, MediaLibrary.PlaylistSongColumns.POSITION },
+		                          MediaLibrary.PlaylistSongColumns._ID+"="+id, null, null, null, null);
+		if (cursor.moveToFirst())
+			result = new long[]{ cursor.getLong(0), cursor.getLong(1) };
+		cursor.close();
+		return result;
+	}
+
+	/**
+	 * Returns a free position directly above or below `position'
+	 *
+	 * @param dbh the database to use
+	 * @param playlistId the playlist to search
+	 * @param excludeId the _id of the entry being moved, ignored while searching
+	 * @param position the position of the target entry
+	 * @param below true to return a position below the target, false for above
+	 * @return the free position, null if the gap to the neighbour is used up
+	 */
+	private Long getFreePosition(SQLiteDatabase dbh, long playlistId, long excludeId, long position, boolean below) {
+		final String col = MediaLibrary.PlaylistSongColumns.POSITION;
+		Cursor cursor = dbh.rawQuery("SELECT "+(below ? "MIN" : "MAX")+"("+col+") FROM "+MediaLibrary.TABLE_PLAYLISTS_SONGS
+		                             +" WHERE "+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+playlistId
+		                             +" AND "+MediaLibrary.PlaylistSongColumns._ID+"!="+excludeId
+		                             +" AND "+col+(below ? " > " : " < ")+position, null);
+		Long neighbour = null;
+		if (cursor.moveToFirst() && !cursor.isNull(0))
+			neighbour = cursor.getLong(0);
+		cursor.close();
+
+		if (neighbour == null)
+			return (below ? position + PLAYLIST_POSITION_GAP : position - PLAYLIST_POSITION_GAP);
+		if (Math.abs(neighbour - position) < 2)
+			return null;
+		return position + (neighbour - position) / 2;
+	}
+
+	/**
+	 * Assigns evenly spaced positions to all entries of a playlist,
+	 * keeping their order.
+	 */
+	private void renumberPlaylist(SQLiteDatabase dbh, long playlistId) {
+		Cursor cursor = dbh.query(MediaLibrary.TABLE_PLAYLISTS_SONGS, new String[]{ MediaLibrary.PlaylistSongColumns._ID },
+		                          MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+"="+playlistId, null, null, null,
+		                          MediaLibrary.PlaylistSongColumns.POSITION+", "+MediaLibrary.PlaylistSongColumns._ID);
+		SQLiteStatement stmt = dbh.compileStatement("UPDATE "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" SET "+MediaLibrary.PlaylistSongColumns.POSITION+"=?"
+		                                            +" WHERE "+MediaLibrary.PlaylistSongColumns._ID+"=?");
+		try {
+			long pos = 0;
+			while (cursor.moveToNext()) {
+				pos += PLAYLIST_POSITION_GAP;
+				stmt.bindLong(1, pos);
+				stmt.bindLong(2, cursor.getLong(0));
+				stmt.executeUpdateDelete();
+			}
+		} finally {
+			stmt.close();
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Returns the subset of `ids' which exist in the songs table
+	 */
+	private HashSet<Long> filterExistingSongs(SQLiteDatabase dbh, ArrayList<Long> ids) {
+		HashSet<Long> result = new HashSet<>();
+		StringBuilder sb = new StringBuilder();
+		for (int start = 0; start < ids.size(); start += IN_QUERY_CHUNK_SIZE) {
+			int end = Math.min(start + IN_QUERY_CHUNK_SIZE, ids.size());
+			sb.setLength(0);
+			for (int i = start; i < end; i++) {
+				if (i != start)
+					sb.append(',');
+				sb.append(ids.get(i));
+			}
+
+			Cursor cursor = dbh.query(MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns._ID },
+			                          MediaLibrary.SongColumns._ID+" IN ("+sb+")", null, null, null, null);
+			while (cursor.moveToNext()) {
+				result.add(cursor.getLong(0));
+			}
+			cursor.close();
+		}
+		return result;
+	}
+
 	/**
 	 * Wrappr for SQLiteDatabase.query() function
 	 */
@@ -237,6 +960,33 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 			Log.v("VanillaMusic", "+++ warning : using HUGE table in genquery!");
 		}
 
+		selection = rewriteSelection(table, selection);
+
+		if (DEBUG)
+			debugQuery(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+
+		Cursor cursor = getReadableDatabase().query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+		if (cursor != null) {
+			// Hold on! This is not some kind of black magic - it makes '''sense''':
+			// SQLites count() performance is pretty poor, but most queries will call getCount() during their
+			// lifetime anyway - unfortunately this might happen in the main thread, causing some lag.
+			// Androids SQLite class caches the result of getCount() calls, so we are going to run it
+			// here as we are (hopefully!) in a background thread anyway.
+			cursor.getCount();
+		}
+		return cursor;
+	}
+
+	/**
+	 * Rewrites the selection of a query on given table: matches on
+	 * contributors and genres are turned into subqueries which are
+	 * able to use the indexes of the mapping tables.
+	 *
+	 * @param table the table or view to query
+	 * @param selection the selection passed to query(), may be null
+	 * @return the selection to run
+	 */
+	static String rewriteSelection(String table, String selection) {
 		if (selection != null) {
 			if (MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS.equals(table)) {
 				// artist matches in the song-view are costy: try to give sqlite a hint
@@ -302,20 +1052,7 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 
 			}
 		}
-
-		if (DEBUG)
-			debugQuery(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
-
-		Cursor cursor = getReadableDatabase().query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
-		if (cursor != null) {
-			// Hold on! This is not some kind of black magic - it makes '''sense''':
-			// SQLites count() performance is pretty poor, but most queries will call getCount() during their
-			// lifetime anyway - unfortunately this might happen in the main thread, causing some lag.
-			// Androids SQLite class caches the result of getCount() calls, so we are going to run it
-			// here as we are (hopefully!) in a background thread anyway.
-			cursor.getCount();
-		}
-		return cursor;
+		return selection;
 	}
 
 	/**
@@ -325,7 +1062,7 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	 * @param sql the raw sql query
 	 * @return String[]{ sql-part, contributor-id, contributor-role }
 	 */
-	private String[] extractVirtualColumn(String sql) {
+	private static String[] extractVirtualColumn(String sql) {
 		final Pattern[] pattern = new Pattern[]{ sQueryMatchArtistSearch, sQueryMatchComposerSearch, sQueryMatchAlbArtistSearch };
 		final int[] roles = { MediaLibrary.ROLE_ARTIST, MediaLibrary.ROLE_COMPOSER, MediaLibrary.ROLE_ALBUMARTIST };
 
@@ -344,7 +1081,7 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	 * @param genreId the id to query as a string
 	 * @return an SQL string which should return song id's for the queried genre
 	 */
-	private String buildSongIdFromGenreSelect(String genreId) {
+	private static String buildSongIdFromGenreSelect(String genreId) {
 		return "SELECT "+MediaLibrary.GenreSongColumns.SONG_ID+" FROM "+MediaLibrary.TABLE_GENRES_SONGS+" WHERE "
 		                +MediaLibrary.GenreSongColumns._GENRE_ID+"="+genreId+" GROUP BY "+MediaLibrary.GenreSongColumns.SONG_ID;
 	}
@@ -357,7 +1094,7 @@ public class MediaLibraryBackend extends SQLiteOpenHelper {
 	 * @param genreSelect the select string generated by buildSongIdFromGenreSelect
 	 * @return an SQL string
 	 */
-	private String buildSongIdFromGenreSelect(String target, String table, String genreSelect) {
+	private static String buildSongIdFromGenreSelect(String target, String table, String genreSelect) {
 		return "SELECT "+target+" FROM "+ table +" WHERE "
 		                +MediaLibrary.SongColumns._ID+" IN ("+genreSelect+") GROUP BY "+target;
 	}
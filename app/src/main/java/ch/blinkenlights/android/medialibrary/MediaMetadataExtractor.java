@@ -226,6 +226,10 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 	 * True if we should try bastp for 'experimental' formats
 	 */
 	private boolean mForceBastp = false;
+	/**
+	 * Gain information found in the tags of this file
+	 */
+	private GainValues mGainValues = new GainValues();
 
 	/**
 	 * Constructor for MediaMetadataExtractor
@@ -275,6 +279,15 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 		return sb.toString();
 	}
 
+	/**
+	 * Returns the ReplayGain and seek window of this file
+	 *
+	 * @return the gain values, never null
+	 */
+	public GainValues getGainValues() {
+		return mGainValues;
+	}
+
 	/**
 	 * Returns true if this file contains any (interesting) data
 	 * @return true if file is considered to be media data
@@ -361,6 +374,7 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 				populateSelf(mediaTags);
 		}
 		convertNumericGenre();
+		mGainValues = GainValues.fromTags(bastpTags);
 
 		// We consider this a media file if it has some common tags OR
 		// if bastp was able to parse it (which is stricter than Android's own parser)
@@ -461,6 +475,7 @@ public class MediaMetadataExtractor extends HashMap<String, ArrayList<String>> {
 				populateSelf(mediaTags);
 		}
 		convertNumericGenre();
+		mGainValues = GainValues.fromTags(bastpTags);
 
 		// We consider this a media file if it has some common tags OR
 		// if bastp was able to parse it (which is stricter than Android's own parser)
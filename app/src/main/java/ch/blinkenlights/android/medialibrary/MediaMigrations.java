@@ -49,4 +49,171 @@ public class MediaMigrations {
 		cursor.close();
 	}
 
+	/**
+	 * Migrate to 20261019
+	 * That is: create the indexes used by the incremental orphan cleanup
+	 *
+	 * @param dbh the database to work on
+	 */
+	static void migrate_to_20261019(SQLiteDatabase dbh) {
+		dbh.execSQL(MediaSchema.INDEX_IDX_SONGS_ALBUM);
+		dbh.execSQL(MediaSchema.INDEX_IDX_CONTRIBUTORS_SONGS_CONTRIBUTOR);
+		dbh.execSQL(MediaSchema.INDEX_IDX_GENRES_SONGS_SONG);
+		dbh.execSQL(MediaSchema.INDEX_IDX_PLAYLISTS_SONGS_SONG);
+	}
+
+	/**
+	 * Migrate to 20261020
+	 * That is: add the gain columns to the songs table. They stay NULL for
+	 * existing entries until the scanner or the playback service fills them.
+	 *
+	 * @param dbh the database to work on
+	 */
+	static void migrate_to_20261020(SQLiteDatabase dbh) {
+		dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+MediaLibrary.SongColumns.REPLAYGAIN_TRACK+" REAL NOT NULL DEFAULT 0");
+		dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+MediaLibrary.SongColumns.REPLAYGAIN_ALBUM+" REAL NOT NULL DEFAULT 0");
+		dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+MediaLibrary.SongColumns.REPLAYGAIN_FOUND+" INTEGER");
+		dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+MediaLibrary.SongColumns.SEEK_START+" INTEGER NOT NULL DEFAULT 0");
+		dbh.execSQL("ALTER TABLE "+MediaLibrary.TABLE_SONGS+" ADD COLUMN "+MediaLibrary.SongColumns.SEEK_END+" INTEGER NOT NULL DEFAULT 0");
+	}
+
+	/**
+	 * Migrate to 20261021
+	 * That is: create the full text search index and populate it
+	 * from the existing library
+	 *
+	 * @param dbh the database to work on
+	 */
+	static void migrate_to_20261021(SQLiteDatabase dbh) {
+		dbh.execSQL(MediaSchema.DATABASE_CREATE_SEARCH);
+
+		final String sql = "SELECT "+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns._ID+", "+MediaLibrary.SongColumns.TITLE+", "+MediaLibrary.AlbumColumns.ALBUM+", "
+			+ selectContributors(MediaLibrary.ROLE_ARTIST)+", "
+			+ selectContributors(MediaLibrary.ROLE_ALBUMARTIST)+", "
+			+ selectContributors(MediaLibrary.ROLE_COMPOSER)+", "
+			+ "(SELECT group_concat("+MediaLibrary.GenreColumns._GENRE+", ' ') FROM "+MediaLibrary.TABLE_GENRES_SONGS+", "+MediaLibrary.TABLE_GENRES
+			+ " WHERE "+MediaLibrary.GenreSongColumns.SONG_ID+"="+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns._ID
+			+ " AND "+MediaLibrary.TABLE_GENRES+"."+MediaLibrary.GenreColumns._ID+"="+MediaLibrary.GenreSongColumns._GENRE_ID+")"
+			+ " FROM "+MediaLibrary.TABLE_SONGS+" LEFT JOIN "+MediaLibrary.TABLE_ALBUMS
+			+ " ON "+MediaLibrary.TABLE_ALBUMS+"."+MediaLibrary.AlbumColumns._ID+"="+MediaLibrary.SongColumns.ALBUM_ID;
+
+		Cursor cursor = dbh.rawQuery(sql, null);
+		while (cursor.moveToNext()) {
+			dbh.insert(MediaLibrary.TABLE_SEARCH, null, MediaLibrary.buildSearchEntry(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+				cursor.getString(3), cursor.getString(4), cursor.getString(5), cursor.getString(6)));
+		}
+		cursor.close();
+	}
+
+	/**
+	 * Migrate to 20261022
+	 * That is: spread playlist positions so that moving an entry
+	 * does not require renumbering its followers
+	 *
+	 * @param dbh the database to work on
+	 */
+	static void migrate_to_20261022(SQLiteDatabase dbh) {
+		dbh.execSQL(MediaSchema.INDEX_IDX_PLAYLIST_ID_POSITION);
+		dbh.execSQL("UPDATE "+MediaLibrary.TABLE_PLAYLISTS_SONGS+" SET "+MediaLibrary.PlaylistSongColumns.POSITION+"="
+		            +MediaLibrary.PlaylistSongColumns.POSITION+"*"+MediaLibraryBackend.PLAYLIST_POSITION_GAP);
+	}
+
+	/**
+	 * Migrate to 20261023
+	 * That is: store the album and playlist aggregates in their tables
+	 * and replace the aggregating views
+	 *
+	 * @param dbh the database to work on
+	 */
+	static void migrate_to_20261023(SQLiteDatabase dbh) {
+		// Tables recreated by older migrations already use the current schema.
+		addColumn(dbh, MediaLibrary.TABLE_ALBUMS, MediaLibrary.AlbumColumns.TOTAL_DURATION, "INTEGER NOT NULL DEFAULT 0");
+		addColumn(dbh, MediaLibrary.TABLE_ALBUMS, MediaLibrary.AlbumColumns.SONG_COUNT, "INTEGER NOT NULL DEFAULT 0");
+		addColumn(dbh, MediaLibrary.TABLE_ALBUMS, MediaLibrary.AlbumColumns.DISC_COUNT, "INTEGER NOT NULL DEFAULT 0");
+		addColumn(dbh, MediaLibrary.TABLE_ALBUMS, MediaLibrary.AlbumColumns.MIN_YEAR, "INTEGER");
+		addColumn(dbh, MediaLibrary.TABLE_ALBUMS, MediaLibrary.AlbumColumns.MAX_YEAR, "INTEGER");
+		addColumn(dbh, MediaLibrary.TABLE_PLAYLISTS, MediaLibrary.PlaylistColumns.TOTAL_DURATION, "INTEGER NOT NULL DEFAULT 0");
+		addColumn(dbh, MediaLibrary.TABLE_PLAYLISTS, MediaLibrary.PlaylistColumns.SONG_COUNT, "INTEGER NOT NULL DEFAULT 0");
+
+		dbh.execSQL("DROP VIEW IF EXISTS "+MediaLibrary.VIEW_ALBUMS_ARTISTS);
+		dbh.execSQL("DROP VIEW IF EXISTS "+MediaLibrary.VIEW_PLAYLISTS);
+		dbh.execSQL(MediaSchema.VIEW_CREATE_ALBUMS_ARTISTS);
+		dbh.execSQL(MediaSchema.VIEW_CREATE_PLAYLISTS);
+
+		dbh.execSQL(MediaSchema.UPDATE_ALBUM_AGGREGATES);
+		dbh.execSQL(MediaSchema.UPDATE_PLAYLIST_AGGREGATES);
+	}
+
+	/**
+	 * Migrate to 20261024
+	 * That is: create the indexes for path lookups, play count
+	 * rankings and sorted library tabs
+	 *
+	 * @param dbh the database to work on
+	 */
+	static void migrate_to_20261024(SQLiteDatabase dbh) {
+		dbh.execSQL(MediaSchema.INDEX_IDX_SONGS_PATH);
+		dbh.execSQL(MediaSchema.INDEX_IDX_SONGS_PLAYCOUNT);
+		dbh.execSQL(MediaSchema.INDEX_IDX_SONGS_TITLE_SORT);
+		dbh.execSQL(MediaSchema.INDEX_IDX_ALBUMS_ALBUM_SORT);
+		dbh.execSQL(MediaSchema.INDEX_IDX_CONTRIBUTORS_SORT);
+		dbh.execSQL(MediaSchema.INDEX_IDX_GENRES_SORT);
+		// Let the query planner know about the new indexes.
+		dbh.execSQL("ANALYZE");
+	}
+
+	/**
+	 * Migrate to 20261025
+	 * That is: create the play history
+	 *
+	 * @param dbh the database to work on
+	 */
+	static void migrate_to_20261025(SQLiteDatabase dbh) {
+		dbh.execSQL(MediaSchema.DATABASE_CREATE_PLAY_HISTORY);
+		dbh.execSQL(MediaSchema.INDEX_IDX_PLAY_HISTORY_SONG);
+	}
+
+	/**
+	 * Migrate to 20261026
+	 * That is: create the MediaStore id cache. Existing songs get
+	 * their ids on first lookup.
+	 *
+	 * @param dbh the database to work on
+	 */
+	static void migrate_to_20261026(SQLiteDatabase dbh) {
+		dbh.execSQL(MediaSchema.DATABASE_CREATE_NATIVE_IDS);
+	}
+
+	/**
+	 * Adds a column to a table, unless the table already has it
+	 *
+	 * @param dbh the database to work on
+	 * @param table the table to alter
+	 * @param column the name of the column to add
+	 * @param definition type and constraints of the new column
+	 */
+	private static void addColumn(SQLiteDatabase dbh, String table, String column, String definition) {
+		boolean exists = false;
+		Cursor cursor = dbh.rawQuery("PRAGMA table_info("+table+")", null);
+		while (cursor.moveToNext()) {
+			if (column.equals(cursor.getString(1)))
+				exists = true;
+		}
+		cursor.close();
+
+		if (!exists)
+			dbh.execSQL("ALTER TABLE "+table+" ADD COLUMN "+column+" "+definition);
+	}
+
+	/**
+	 * Returns a sub-select for the names of all contributors of a song
+	 * with the given role
+	 */
+	private static String selectContributors(int role) {
+		return "(SELECT group_concat("+MediaLibrary.ContributorColumns._CONTRIBUTOR+", ' ') FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS+", "+MediaLibrary.TABLE_CONTRIBUTORS
+			+ " WHERE "+MediaLibrary.ContributorSongColumns.SONG_ID+"="+MediaLibrary.TABLE_SONGS+"."+MediaLibrary.SongColumns._ID
+			+ " AND "+MediaLibrary.ContributorSongColumns.ROLE+"="+role
+			+ " AND "+MediaLibrary.TABLE_CONTRIBUTORS+"."+MediaLibrary.ContributorColumns._ID+"="+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+")";
+	}
+
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.content.ContentValues;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Write-behind buffer used by the MediaScanner: collects all database
+ * modifications of multiple scanned files, so that they can be written
+ * to the database in a single transaction.
+ */
+class MediaScanBatch {
+	/**
+	 * Flush the batch after this many files were queued
+	 */
+	private static final int MAX_FILES = 250;
+	/**
+	 * Flush the batch if the oldest queued entry is older than this many ms
+	 */
+	private static final long MAX_DELAY = 2000;
+
+	static final int OP_INSERT = 1; // insert row, ignore conflicts
+	static final int OP_UPSERT = 2; // insert row, update using `update' on conflict
+	static final int OP_DELETE_SONG = 3; // delete a song and its references
+
+	class Op {
+		final int type;
+		final String table;
+		final ContentValues values;
+		final ContentValues update;
+		final String where;
+		final long id;
+		Op(int type, String table, ContentValues values, ContentValues update, String where, long id) {
+			this.type = type;
+			this.table = table;
+			this.values = values;
+			this.update = update;
+			this.where = where;
+			this.id = id;
+		}
+	}
+
+	/**
+	 * All queued operations, in the order they were added
+	 */
+	private final ArrayList<Op> mOps = new ArrayList<>();
+	/**
+	 * Number of files which contributed to this batch
+	 */
+	private int mFiles;
+	/**
+	 * Uptime of the first queued operation
+	 */
+	private long mFirstQueuedAt;
+
+	/**
+	 * Queues a new insert
+	 *
+	 * @param table the table to insert into
+	 * @param values the values to insert
+	 */
+	void insert(String table, ContentValues values) {
+		add(new Op(OP_INSERT, table, values, null, null, 0));
+	}
+
+	/**
+	 * Queues an insert, updating the existing row if the insert fails
+	 *
+	 * @param table the table to insert into
+	 * @param values the values to insert
+	 * @param update the values to set if the row already exists
+	 * @param where the selection of the existing row
+	 */
+	void upsert(String table, ContentValues values, ContentValues update, String where) {
+		add(new Op(OP_UPSERT, table, values, update, where, 0));
+	}
+
+	/**
+	 * Queues the removal of a song, see MediaLibraryBackend.deleteSong()
+	 *
+	 * @param songId the song to delete
+	 */
+	void deleteSong(long songId) {
+		add(new Op(OP_DELETE_SONG, MediaLibrary.TABLE_SONGS, null, null, null, songId));
+	}
+
+	/**
+	 * Signals that a file finished adding its operations
+	 */
+	void finishFile() {
+		if (mOps.size() != 0)
+			mFiles++;
+	}
+
+	/**
+	 * Returns true if this batch should get written to the database
+	 */
+	boolean isDue() {
+		if (mOps.size() == 0)
+			return false;
+		return mFiles >= MAX_FILES || SystemClock.uptimeMillis() - mFirstQueuedAt >= MAX_DELAY;
+	}
+
+	/**
+	 * Returns true if nothing is queued
+	 */
+	boolean isEmpty() {
+		return mOps.size() == 0;
+	}
+
+	/**
+	 * Returns all queued operations
+	 */
+	ArrayList<Op> getOps() {
+		return mOps;
+	}
+
+	/**
+	 * Drops all queued operations
+	 */
+	void clear() {
+		mOps.clear();
+		mFiles = 0;
+	}
+
+	private void add(Op op) {
+		if (mOps.size() == 0)
+			mFirstQueuedAt = SystemClock.uptimeMillis();
+		mOps.add(op);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import android.os.Process;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of threads extracting tags for the MediaScanner.
+ * Database access is left to the caller: workers only parse files.
+ */
+class MediaScanWorkers {
+	/**
+	 * Upper limit of workers if the number was not configured
+	 */
+	private static final int MAX_AUTO_WORKERS = 4;
+	/**
+	 * How many files per worker may be in flight
+	 */
+	private static final int FILES_PER_WORKER = 4;
+	/**
+	 * Idle workers exit after this many seconds
+	 */
+	private static final int KEEP_ALIVE = 30;
+	/**
+	 * The executor running our jobs
+	 */
+	private final ThreadPoolExecutor mExecutor;
+
+	MediaScanWorkers() {
+		ThreadFactory factory = new ThreadFactory() {
+			private int mCount;
+			@Override
+			public Thread newThread(final Runnable r) {
+				Runnable lowPrio = new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+						r.run();
+					}
+				};
+				return new Thread(lowPrio, "MediaScannerWorker-"+(mCount++));
+			}
+		};
+		mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Configures the degree of parallelism
+	 *
+	 * @param workers the number of workers to use, 0 picks a default based on the number of cpus
+	 */
+	void setWorkerCount(int workers) {
+		if (workers <= 0)
+			workers = Math.min(MAX_AUTO_WORKERS, Runtime.getRuntime().availableProcessors());
+		if (workers < 1)
+			workers = 1;
+
+		if (workers > mExecutor.getMaximumPoolSize()) {
+			mExecutor.setMaximumPoolSize(workers);
+			mExecutor.setCorePoolSize(workers);
+		} else {
+			mExecutor.setCorePoolSize(workers);
+			mExecutor.setMaximumPoolSize(workers);
+		}
+	}
+
+	/**
+	 * Returns the number of files the caller should queue before
+	 * waiting for results. This keeps memory usage bounded.
+	 */
+	int getWindowSize() {
+		return mExecutor.getMaximumPoolSize() * FILES_PER_WORKER;
+	}
+
+	/**
+	 * Schedules tag extraction of given path
+	 *
+	 * @param path the file to parse
+	 * @param forceBastp passed to MediaMetadataExtractor
+	 * @return a future resolving to the extracted tags
+	 */
+	Future<MediaMetadataExtractor> extract(final String path, final boolean forceBastp) {
+		return mExecutor.submit(new Callable<MediaMetadataExtractor>() {
+			@Override
+			public MediaMetadataExtractor call() {
+				return new MediaMetadataExtractor(path, forceBastp);
+			}
+		});
+	}
+}
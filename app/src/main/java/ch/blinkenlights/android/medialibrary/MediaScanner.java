@@ -26,6 +26,8 @@ import android.content.ContentValues;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.ContentObserver;
+import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 import android.provider.MediaStore;
 import android.os.Handler;
@@ -37,6 +39,8 @@ import android.os.SystemClock;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 public class MediaScanner implements Handler.Callback {
@@ -60,6 +64,33 @@ public class MediaScanner implements Handler.Callback {
 	 * Instance of a media backend
 	 */
 	private MediaLibraryBackend mBackend;
+	/**
+	 * Pending database writes of the current scan
+	 */
+	private MediaScanBatch mBatch;
+	/**
+	 * Workers used to extract tags
+	 */
+	private MediaScanWorkers mWorkers;
+	/**
+	 * Files waiting for their tags, in scan order
+	 */
+	private ArrayList<InspectJob> mInspectQueue;
+	/**
+	 * In-memory copy of the mtime and flags of all songs, used by
+	 * scan steps which visit the whole library. May be null.
+	 */
+	private volatile LongLongMap mSongSnapshot;
+	/**
+	 * Directories read during the current step, added to the
+	 * directory index once the step finished.
+	 */
+	private ArrayList<ContentValues> mPendingDirectories;
+	/**
+	 * MediaStore ids of songs which changed since the last
+	 * MSG_FORGET_NATIVE_IDS was handled
+	 */
+	private final HashSet<Long> mChangedNativeIds = new HashSet<>();
 	/**
 	 * True if this is a from-scratch import
 	 * Set by KICKSTART rpc
@@ -69,6 +100,10 @@ public class MediaScanner implements Handler.Callback {
 	 * True if we must do a full cleanup of orphaned entries after the scan finished.
 	 */
 	private boolean mPendingCleanup;
+	/**
+	 * Entries which might have been orphaned during this scan, purged once it finished.
+	 */
+	private MediaLibraryBackend.OrphanCandidates mOrphanCandidates;
 	/**
 	 * Our NotificationHelper instance.
 	 */
@@ -93,10 +128,31 @@ public class MediaScanner implements Handler.Callback {
 	 * Delay native scans by this many ms to coalesce multiple modifications
 	 */
 	private static final int NATIVE_VRFY_COALESCE_DELAY = 3500;
+	/**
+	 * Do not trust directory mtimes which are younger than this many ms
+	 */
+	private static final int DIRECTORY_MTIME_SLACK = 2000;
+	/**
+	 * Process at most this many entries of the work queue per message
+	 */
+	private static final int WORK_SLICE_FILES = 100;
+	/**
+	 * ...and do not spend more than this many ms per message
+	 */
+	private static final int WORK_SLICE_MS = 250;
+	/**
+	 * Object passed to KICKSTART if the scan was aborted
+	 */
+	private static final Object ABORTED = new Object();
 
 	MediaScanner(Context context, MediaLibraryBackend backend) {
 		mContext = context;
 		mBackend = backend;
+		mBatch = new MediaScanBatch();
+		mOrphanCandidates = new MediaLibraryBackend.OrphanCandidates();
+		mWorkers = new MediaScanWorkers();
+		mInspectQueue = new ArrayList<>();
+		mPendingDirectories = new ArrayList<>();
 		mScanPlan = new MediaScanPlan();
 		HandlerThread handlerThread = new HandlerThread("MediaScannerThread", Process.THREAD_PRIORITY_LOWEST);
 		handlerThread.start();
@@ -108,6 +164,19 @@ public class MediaScanner implements Handler.Callback {
 		ContentObserver mObserver = new ContentObserver(null) {
 			@Override
 			public void onChange(boolean self) {
+				onChange(self, null);
+			}
+			@Override
+			public void onChange(boolean self, Uri uri) {
+				// Songs might have been added or got new ids: forget about them
+				// on our own thread, the native scan picks up the new ids.
+				String last = (uri == null ? null : uri.getLastPathSegment());
+				synchronized (mChangedNativeIds) {
+					if (last != null && last.length() != 0 && TextUtils.isDigitsOnly(last))
+						mChangedNativeIds.add(Long.parseLong(last));
+					if (!mHandler.hasMessages(MSG_FORGET_NATIVE_IDS))
+						mHandler.sendEmptyMessage(MSG_FORGET_NATIVE_IDS);
+				}
 				startQuickScan(NATIVE_VRFY_COALESCE_DELAY);
 			}
 		};
@@ -156,7 +225,7 @@ public class MediaScanner implements Handler.Callback {
 	public void abortScan() {
 		mHandler.removeMessages(MSG_SCAN_RPC);
 		mScanPlan.clear();
-		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0));
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_KICKSTART, 0, ABORTED));
 	}
 
 	/**
@@ -164,6 +233,7 @@ public class MediaScanner implements Handler.Callback {
 	 */
 	public void flushDatabase() {
 		mBackend.setPendingDeletion();
+		mSongSnapshot = null; // all mtimes changed.
 		mPendingCleanup = true;
 		setNativeLastMtime(MTIME_PRISTINE);
 	}
@@ -191,11 +261,12 @@ public class MediaScanner implements Handler.Callback {
 	private static final int MSG_SCAN_FINISHED    = 1;
 	private static final int MSG_NOTIFY_CHANGE    = 2;
 	private static final int MSG_GUESS_QUICKSCAN  = 3;
+	private static final int MSG_FORGET_NATIVE_IDS = 4;
 	private static final int RPC_KICKSTART        = 100;
 	private static final int RPC_READ_DIR         = 101;
-	private static final int RPC_INSPECT_FILE     = 102;
 	private static final int RPC_LIBRARY_VRFY     = 103;
 	private static final int RPC_NATIVE_VRFY      = 104;
+	private static final int RPC_PROCESS_QUEUE    = 105;
 
 	@Override
 	public boolean handleMessage(Message message) {
@@ -207,15 +278,20 @@ public class MediaScanner implements Handler.Callback {
 				break;
 			}
 			case MSG_SCAN_FINISHED: {
+				mSongSnapshot = null;
 				if (mIsInitialScan) {
 					mIsInitialScan = false;
 					MediaLibrary.notifyObserver(LibraryObserver.Type.PLAYLIST, LibraryObserver.Value.OUTDATED, false);
 				}
 				if (mPendingCleanup) {
 					mPendingCleanup = false;
+					mOrphanCandidates.clear(); // covered by the full cleanup
 					mBackend.cleanOrphanedEntries(true);
 					// scan run possibly deleted file which may affect playlists:
 					MediaLibrary.notifyObserver(LibraryObserver.Type.PLAYLIST, LibraryObserver.Value.UNKNOWN, false);
+				} else if (!mOrphanCandidates.isEmpty()) {
+					mBackend.cleanOrphanedEntries(mOrphanCandidates);
+					MediaLibrary.notifyObserver(LibraryObserver.Type.PLAYLIST, LibraryObserver.Value.UNKNOWN, false);
 				}
 
 				// Send a last change notification to all observers.
@@ -233,33 +309,47 @@ public class MediaScanner implements Handler.Callback {
 				guessQuickScanPlan();
 				break;
 			}
+			case MSG_FORGET_NATIVE_IDS: {
+				ArrayList<Long> changed;
+				synchronized (mChangedNativeIds) {
+					changed = new ArrayList<>(mChangedNativeIds);
+					mChangedNativeIds.clear();
+				}
+				mBackend.forgetNativeIds(changed);
+				break;
+			}
 			case RPC_KICKSTART: {
 				// a new scan was triggered: check if this is a 'initial / from scratch' scan
 				if (!mIsInitialScan && MediaLibrary.getPreferences(mContext)._nativeLastMtime == 0) {
 					mIsInitialScan = true;
 				}
-				break;
-			}
-			case RPC_INSPECT_FILE: {
-				final File file = (File)message.obj;
-				boolean changed = rpcInspectFile(file);
-				mScanPlan.registerProgress(file.toString(), changed);
-				if (changed && !mHandler.hasMessages(MSG_NOTIFY_CHANGE)) {
-					mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_NOTIFY_CHANGE), 500);
+				mWorkers.setWorkerCount(MediaLibrary.getPreferences(mContext).scanWorkers);
+				if (message.obj == ABORTED) {
+					// Drop the remaining work of the aborted step. Directories
+					// of an aborted scan were not fully inspected.
+					mScanPlan.clearWork();
+					mPendingDirectories.clear();
 				}
-				updateNotification(true);
 				break;
 			}
 			case RPC_READ_DIR: {
 				rpcReadDirectory((File)message.obj);
+				scheduleWork();
 				break;
 			}
 			case RPC_LIBRARY_VRFY: {
-				rpcLibraryVerify((Cursor)message.obj);
+				rpcLibraryVerify();
+				scheduleWork();
 				break;
 			}
 			case RPC_NATIVE_VRFY: {
-				rpcNativeVerify((Cursor)message.obj, message.arg2);
+				rpcNativeVerify();
+				scheduleWork();
+				break;
+			}
+			case RPC_PROCESS_QUEUE: {
+				rpcProcessQueue();
+				scheduleWork();
 				break;
 			}
 			default: {
@@ -268,10 +358,20 @@ public class MediaScanner implements Handler.Callback {
 		}
 
 		if (message.what == MSG_SCAN_RPC && !mHandler.hasMessages(MSG_SCAN_RPC)) {
+			// Write out everything the finished step produced: the next step
+			// (or the final cleanup) expects the database to be up-to-date.
+			drainInspectQueue();
+			commitPendingDirectories();
+			flushBatch();
 			MediaScanPlan.Step step = mScanPlan.getNextStep();
 			if (step == null) {
 				mHandler.sendEmptyMessage(MSG_SCAN_FINISHED);
 			} else {
+				if ((step.msg == RPC_READ_DIR || step.msg == RPC_LIBRARY_VRFY) && mSongSnapshot == null) {
+					// This step will visit (almost) every song: a single query is much
+					// cheaper than looking up each file on its own.
+					mSongSnapshot = mBackend.getSongSnapshot();
+				}
 				Log.v("VanillaMusic", "xxx --- starting scan of type "+step.msg);
 				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, step.msg, 0, step.arg));
 			}
@@ -280,6 +380,20 @@ public class MediaScanner implements Handler.Callback {
 		return true;
 	}
 
+	/**
+	 * Writes all pending changes to the database and
+	 * schedules a change notification for our observers
+	 */
+	private void flushBatch() {
+		if (mBatch.isEmpty())
+			return;
+
+		mBackend.applyBatch(mBatch, mOrphanCandidates);
+		if (!mHandler.hasMessages(MSG_NOTIFY_CHANGE)) {
+			mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_NOTIFY_CHANGE), 500);
+		}
+	}
+
 	private static final int MTIME_PRISTINE = 0;
 	private static final int MTIME_DIRTY = 1;
 	/**
@@ -369,63 +483,152 @@ public class MediaScanner implements Handler.Callback {
 
 	/**
 	 * Scans the android library, inspecting every found file
-	 *
-	 * @param cursor the cursor we are using
-	 * @param mtime the mtime to carry over, ignored if cursor is null
-	 */
-	private void rpcNativeVerify(Cursor cursor, int mtime) {
-		if (cursor == null) {
-			mtime = MediaLibrary.getPreferences(mContext)._nativeLastMtime; // starting a new scan -> read stored mtime from preferences
-			String selection = MediaStore.Audio.Media.IS_MUSIC + "!= 0 AND "+ MediaStore.MediaColumns.DATE_MODIFIED +" > " + (mtime - NATIVE_VRFY_MTIME_SLACK);
-			String sort = MediaStore.MediaColumns.DATE_MODIFIED;
-			String[] projection = { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DATE_MODIFIED };
-			try {
-				cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection, null, sort);
-			} catch(SecurityException e) {
-				Log.e("VanillaMusic", "rpcNativeVerify failed: "+e);
-			}
+	 */
+	private void rpcNativeVerify() {
+		final int lastMtime = MediaLibrary.getPreferences(mContext)._nativeLastMtime;
+		String selection = MediaStore.Audio.Media.IS_MUSIC + "!= 0 AND "+ MediaStore.MediaColumns.DATE_MODIFIED +" > " + (lastMtime - NATIVE_VRFY_MTIME_SLACK);
+		String sort = MediaStore.MediaColumns.DATE_MODIFIED;
+		String[] projection = { MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DATE_MODIFIED,
+		                        MediaStore.Audio.Media._ID, MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.ARTIST_ID };
+		Cursor cursor = null;
+		try {
+			cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection, selection, null, sort);
+		} catch(SecurityException e) {
+			Log.e("VanillaMusic", "rpcNativeVerify failed: "+e);
 		}
 
 		if (cursor == null)
-			return; // still null.. fixme: handle me better
+			return; // fixme: handle me better
 
-		if (cursor.moveToNext()) {
-			String path = cursor.getString(0);
-			mtime = cursor.getInt(1);
-			if (path != null) { // this seems to be a thing...
-				File entry = new File(path);
-				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_INSPECT_FILE, 0, entry));
-				mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_NATIVE_VRFY, mtime, cursor));
+		final Cursor nativeCursor = cursor;
+		mScanPlan.pushWork(mScanPlan.new Work(true) {
+			int mtime = lastMtime;
+			@Override
+			File next() {
+				while (nativeCursor.moveToNext()) {
+					String path = nativeCursor.getString(0);
+					mtime = nativeCursor.getInt(1);
+					if (path != null) // this seems to be a thing...
+						return new File(path);
+				}
+				return null;
 			}
-		} else {
-			cursor.close();
-			setNativeLastMtime(mtime);
-			Log.v("VanillaMusic", "NativeLibraryScanner finished, mtime mark is now at "+mtime);
-		}
+			@Override
+			long[] getNativeIds() {
+				return new long[]{ nativeCursor.getLong(2), nativeCursor.getLong(3), nativeCursor.getLong(4) };
+			}
+			@Override
+			void finish() {
+				nativeCursor.close();
+				setNativeLastMtime(mtime);
+				Log.v("VanillaMusic", "NativeLibraryScanner finished, mtime mark is now at "+mtime);
+			}
+			@Override
+			void abort() {
+				nativeCursor.close();
+			}
+		});
 	}
 
 	/**
 	 * Scans every file in our own library and checks for changes
-	 *
-	 * @param cursor the cursor we are using
 	 */
-	private void rpcLibraryVerify(Cursor cursor) {
-		if (cursor == null)
-			cursor = mBackend.query(false, MediaLibrary.TABLE_SONGS, new String[]{MediaLibrary.SongColumns.PATH}, null, null, null, null, null, null);
+	private void rpcLibraryVerify() {
+		final Cursor cursor = mBackend.query(false, MediaLibrary.TABLE_SONGS, new String[]{MediaLibrary.SongColumns.PATH}, null, null, null, null, null, null);
+		mScanPlan.pushWork(mScanPlan.new Work(true) {
+			@Override
+			File next() {
+				return cursor.moveToNext() ? new File(cursor.getString(0)) : null;
+			}
+			@Override
+			void finish() {
+				cursor.close();
+			}
+			@Override
+			void abort() {
+				cursor.close();
+			}
+		});
+	}
 
-		if (cursor.moveToNext()) {
-			File entry = new File(cursor.getString(0));
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_INSPECT_FILE, 0, entry));
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_LIBRARY_VRFY, 0, cursor));
-		} else {
-			cursor.close();
+	/**
+	 * Processes the work queue of the current step for a short time.
+	 * Directories are handled depth first, so only the listings of the
+	 * directories leading to the current position are kept in memory.
+	 */
+	private void rpcProcessQueue() {
+		final long deadline = SystemClock.uptimeMillis() + WORK_SLICE_MS;
+		int processed = 0;
+
+		while (processed < WORK_SLICE_FILES && SystemClock.uptimeMillis() < deadline) {
+			MediaScanPlan.Work work = mScanPlan.peekWork();
+			if (work == null)
+				break;
+
+			File file = work.next();
+			if (file == null) {
+				mScanPlan.popWork();
+				work.finish();
+				continue;
+			}
+
+			if (work.inspectOnly || file.isFile()) {
+				inspectFile(file, work.getNativeIds());
+			} else {
+				rpcReadDirectory(file);
+			}
+			processed++;
 		}
 	}
 
+	/**
+	 * Schedules another run of rpcProcessQueue() if work is left.
+	 */
+	private void scheduleWork() {
+		if (mScanPlan.peekWork() != null)
+			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, RPC_PROCESS_QUEUE, 0));
+	}
+
+	/**
+	 * Inspects a single file, updating the scan progress
+	 *
+	 * @param file the file to inspect
+	 * @param nativeIds the ids of the file in the MediaStore, null if unknown
+	 */
+	private void inspectFile(File file, long[] nativeIds) {
+		if (!queueInspectFile(file, nativeIds)) {
+			mScanPlan.registerProgress(file.toString(), false);
+			mBatch.finishFile();
+			if (mBatch.isDue()) {
+				flushBatch();
+			}
+			updateNotification(true);
+		}
+		if (mInspectQueue.size() >= mWorkers.getWindowSize()) {
+			drainInspectQueue();
+		}
+	}
+
+	/**
+	 * Queues an update of the native ids of a song in our library
+	 *
+	 * @param songId the song id in our library
+	 * @param nativeIds long { song_id, album_id, artist_id }
+	 */
+	private void queueNativeIds(long songId, long[] nativeIds) {
+		ContentValues v = MediaLibraryBackend.buildNativeIds(songId, nativeIds);
+		mBatch.upsert(MediaLibrary.TABLE_NATIVE_IDS, v, v, MediaLibrary.NativeIdColumns._ID+"="+songId);
+	}
+
 	/**
 	 * Loops trough given directory and adds all found
 	 * files to the scan queue
 	 *
+	 * The files of directories which did not change since the last scan
+	 * are not inspected again: files known to the library get verified by
+	 * RPC_LIBRARY_VRFY anyway, so we only descend into their subdirectories.
+	 * The directory itself still gets listed to detect changes.
+	 *
 	 * @param dir the directory to scan
 	 */
 	private void rpcReadDirectory(File dir) {
@@ -438,16 +641,82 @@ public class MediaScanner implements Handler.Callback {
 		if (isDotfile(dir))
 			return;
 
-		File[] dirents = dir.listFiles();
-		if (dirents == null)
+		final String path = dir.getAbsolutePath();
+		final long dirId = MediaLibrary.hash63(path);
+		long mtime = dir.lastModified();
+
+		String[] names = dir.list();
+		if (names == null)
+			return;
+
+		long[] known = mBackend.getDirectory(dirId);
+		if (known != null && mtime != 0 && known[0] == mtime && known[1] == names.length) {
+			ArrayList<String> knownSubdirs = mBackend.getSubdirectories(dirId);
+			File[] entries = new File[knownSubdirs.size()];
+			for (int i = 0; i < entries.length; i++) {
+				entries[i] = new File(knownSubdirs.get(i));
+			}
+			mScanPlan.pushWork(mScanPlan.new DirectoryWork(entries));
 			return;
+		}
+
+		HashSet<String> subdirs = new HashSet<>();
+		File[] entries = new File[names.length];
+		for (int i = 0; i < names.length; i++) {
+			File file = new File(dir, names[i]);
+			if (file.isDirectory())
+				subdirs.add(file.getAbsolutePath());
+			entries[i] = file;
+		}
+		mScanPlan.pushWork(mScanPlan.new DirectoryWork(entries));
+
+		// Forget about subdirectories which are gone.
+		for (String subdir : mBackend.getSubdirectories(dirId)) {
+			if (!subdirs.contains(subdir))
+				mBackend.removeDirectoryTree(subdir);
+		}
 
-		for (File file : dirents) {
-			int rpc = (file.isFile() ? RPC_INSPECT_FILE : RPC_READ_DIR);
-			mHandler.sendMessage(mHandler.obtainMessage(MSG_SCAN_RPC, rpc, 0, file));
+		// The mtime might not change if the directory is modified within the
+		// same tick: do not trust it if it is this recent.
+		if (System.currentTimeMillis() - mtime < DIRECTORY_MTIME_SLACK)
+			mtime = 0;
+
+		ContentValues v = new ContentValues();
+		v.put(MediaLibrary.DirectoryColumns.PARENT_ID,   MediaLibrary.hash63(dir.getParent()));
+		v.put(MediaLibrary.DirectoryColumns.PATH,        path);
+		v.put(MediaLibrary.DirectoryColumns.MTIME,       mtime);
+		v.put(MediaLibrary.DirectoryColumns.CHILD_COUNT, names.length);
+		mPendingDirectories.add(v);
+
+		// Subdirectories must be known even if they are never read (eg. due to .nomedia),
+		// as we would otherwise never visit them again after this directory got indexed.
+		for (String subdir : subdirs) {
+			v = new ContentValues();
+			v.put(MediaLibrary.DirectoryColumns.PARENT_ID, dirId);
+			v.put(MediaLibrary.DirectoryColumns.PATH,      subdir);
+			mPendingDirectories.add(v);
 		}
 	}
 
+	/**
+	 * Queues all directories read during the last step for insertion.
+	 * Must be called after all files found in these directories were inspected.
+	 */
+	private void commitPendingDirectories() {
+		for (ContentValues v : mPendingDirectories) {
+			final long id = MediaLibrary.hash63(v.getAsString(MediaLibrary.DirectoryColumns.PATH));
+			v.put(MediaLibrary.DirectoryColumns._ID, id);
+			if (v.containsKey(MediaLibrary.DirectoryColumns.MTIME)) {
+				ContentValues u = new ContentValues(v);
+				u.remove(MediaLibrary.DirectoryColumns._ID);
+				mBatch.upsert(MediaLibrary.TABLE_DIRECTORIES, v, u, MediaLibrary.DirectoryColumns._ID+"="+id);
+			} else {
+				mBatch.insert(MediaLibrary.TABLE_DIRECTORIES, v); // placeholder, keeps existing entry.
+			}
+		}
+		mPendingDirectories.clear();
+	}
+
 	/**
 	 * Checks if a string is null, empty or whitespace.
 	 *
@@ -460,12 +729,30 @@ public class MediaScanner implements Handler.Callback {
 
 
 	/**
-	 * Inspects a single file and adds it to the database or removes it. maybe.
+	 * A file which needs to be (re-)inspected
+	 */
+	private static class InspectJob {
+		File file;
+		String path;
+		long songId;
+		long songFlags;
+		long playCount;
+		long skipCount;
+		boolean outdated; // true if an outdated db entry exists
+		long[] nativeIds; // ids in the MediaStore, may be null
+		Future<MediaMetadataExtractor> tags;
+	}
+
+	/**
+	 * Checks if a file needs to be inspected and schedules tag extraction
+	 * if this is the case. The result is picked up by drainInspectQueue().
 	 *
-	 * @param file the file to add
-	 * @return true if we modified the database
+	 * @param file the file to inspect
+	 * @param nativeIds the ids of the file in the MediaStore, null if unknown.
+	 * They are only stored if the file is part of the library.
+	 * @return true if the file was queued
 	 */
-	private boolean rpcInspectFile(File file) {
+	private boolean queueInspectFile(File file, long[] nativeIds) {
 		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
 		String path  = file.getAbsolutePath();
 		long songId  = MediaLibrary.hash63(path);
@@ -476,35 +763,106 @@ public class MediaScanner implements Handler.Callback {
 		if (isDotfile(file))
 			return false;
 
-		long dbEntryMtime = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.MTIME, songId) * 1000; // this is in unixtime -> convert to 'ms'
-		long songFlags = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.FLAGS, songId);
+		for (InspectJob queued : mInspectQueue) {
+			if (queued.songId == songId) {
+				if (nativeIds != null)
+					queued.nativeIds = nativeIds;
+				return false; // already waiting for its tags.
+			}
+		}
+
+		long dbEntryMtime;
+		long songFlags;
+		LongLongMap snapshot = mSongSnapshot;
+		if (snapshot != null) {
+			long packed = snapshot.get(songId, 0);
+			dbEntryMtime = MediaLibraryBackend.snapshotMtime(packed);
+			songFlags = MediaLibraryBackend.snapshotFlags(packed);
+		} else {
+			long[] row = mBackend.getColumnsFromSongId(new String[]{ MediaLibrary.SongColumns.MTIME, MediaLibrary.SongColumns.FLAGS }, songId);
+			dbEntryMtime = row[0];
+			songFlags = row[1];
+		}
+		dbEntryMtime *= 1000; // this is in unixtime -> convert to 'ms'
 		long fileMtime = file.lastModified();
-		long playCount = 0;
-		long skipCount = 0;
-		boolean hasChanged = false;
-		boolean mustInsert = false;
 
 		if (fileMtime > 0 && dbEntryMtime >= fileMtime && (songFlags & MediaLibrary.SONG_FLAG_OUTDATED) == 0) {
+			if (nativeIds != null)
+				queueNativeIds(songId, nativeIds);
 			return false; // on-disk mtime is older than db mtime and it still exists -> nothing to do
 		}
 
+		InspectJob job = new InspectJob();
+		job.file = file;
+		job.path = path;
+		job.songId = songId;
+		job.songFlags = songFlags;
+		job.nativeIds = nativeIds;
 		if (dbEntryMtime != 0) {
+			// DB entry exists but is outdated - this tries to preserve play and skipcounts of the song
+			job.outdated = true;
+			long[] counts = mBackend.getColumnsFromSongId(new String[]{ MediaLibrary.SongColumns.PLAYCOUNT, MediaLibrary.SongColumns.SKIPCOUNT }, songId);
+			job.playCount = counts[0];
+			job.skipCount = counts[1];
+		}
+		job.tags = mWorkers.extract(path, prefs.forceBastp);
+		mInspectQueue.add(job);
+		return true;
+	}
+
+	/**
+	 * Waits for all queued inspect jobs and writes their
+	 * results to the current batch, in the order they were queued.
+	 */
+	private void drainInspectQueue() {
+		for (InspectJob job : mInspectQueue) {
+			MediaMetadataExtractor tags = null;
+			try {
+				tags = job.tags.get();
+			} catch (Exception e) {
+				Log.e("VanillaMusic", "Failed to extract tags from "+job.path+": "+e);
+			}
+			boolean changed = commitInspectFile(job, tags);
+			mScanPlan.registerProgress(job.file.toString(), changed);
+			mBatch.finishFile();
+			if (mBatch.isDue()) {
+				flushBatch();
+			}
+			updateNotification(true);
+		}
+		mInspectQueue.clear();
+	}
+
+	/**
+	 * Adds a single inspected file to the database or removes it. maybe.
+	 *
+	 * @param job the inspected file
+	 * @param tags the tags extracted from this file, may be null on error
+	 * @return true if we modified the database
+	 */
+	private boolean commitInspectFile(InspectJob job, MediaMetadataExtractor tags) {
+		MediaLibrary.Preferences prefs = MediaLibrary.getPreferences(mContext);
+		File file = job.file;
+		String path = job.path;
+		long songId = job.songId;
+		long songFlags = job.songFlags;
+		long playCount = job.playCount;
+		long skipCount = job.skipCount;
+		boolean hasChanged = false;
+		boolean mustInsert = false;
+
+		if (job.outdated) {
 			// DB entry exists but is outdated - drop current entry and maybe re-insert it
-			// this tries to preserve play and skipcounts of the song
-			playCount = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.PLAYCOUNT, songId);
-			skipCount = mBackend.getColumnFromSongId(MediaLibrary.SongColumns.SKIPCOUNT, songId);
 			// Remove the song from the database for now but do not delete any
 			// playlist references to it.
-			mBackend.delete(MediaLibrary.TABLE_SONGS, MediaLibrary.SongColumns._ID+"="+songId, null);
-			mBackend.cleanOrphanedEntries(false);
-			mPendingCleanup = true; // Ensure that we run a full cleanup after all scans finished, to get rid of orphaned playlist entries.
+			// Orphaned entries (including playlist entries) are purged after the scan finished.
+			mBatch.deleteSong(songId);
 			hasChanged = true; // notify caller about change even if we are not going to re-insert this file.
 		}
 
 		// Check if we are willing to insert this file
 		// This is the case if we consider it to be playable on this device.
-		MediaMetadataExtractor tags = new MediaMetadataExtractor(path, prefs.forceBastp);
-		mustInsert = tags.isMediaFile();
+		mustInsert = (tags != null && tags.isMediaFile());
 
 		if (mustInsert) {
 			Log.v("VanillaMusic", "MediaScanner: inserted " + path);
@@ -557,92 +915,113 @@ public class MediaScanner implements Handler.Callback {
 			v.put(MediaLibrary.SongColumns.SKIPCOUNT,   skipCount);
 			v.put(MediaLibrary.SongColumns.PATH,        path);
 			v.put(MediaLibrary.SongColumns.FLAGS,       songFlags);
-			mBackend.insert(MediaLibrary.TABLE_SONGS, null, v);
-
-			v.clear();
+			GainValues gain = tags.getGainValues();
+			v.put(MediaLibrary.SongColumns.REPLAYGAIN_TRACK, gain.track);
+			v.put(MediaLibrary.SongColumns.REPLAYGAIN_ALBUM, gain.album);
+			v.put(MediaLibrary.SongColumns.REPLAYGAIN_FOUND, gain.found ? 1 : 0);
+			v.put(MediaLibrary.SongColumns.SEEK_START,  gain.seekStart);
+			v.put(MediaLibrary.SongColumns.SEEK_END,    gain.seekEnd);
+			mBatch.insert(MediaLibrary.TABLE_SONGS, v);
+
+			v = new ContentValues();
 			v.put(MediaLibrary.AlbumColumns._ID,               albumId);
 			v.put(MediaLibrary.AlbumColumns.ALBUM,             album);
 			v.put(MediaLibrary.AlbumColumns.ALBUM_SORT,        MediaLibrary.keyFor(album));
 			v.put(MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID, artistId);
 			v.put(MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR,tags.getFirst(MediaMetadataExtractor.YEAR));
-			long albumInsert = mBackend.insert(MediaLibrary.TABLE_ALBUMS, null, v);
-			if (albumInsert == -1) {
-				// Insert failed, so the column probably already existed.
-				// We need to ensure that the album table is up-to-date as it contains
-				// some 'cached' (PRIMARY_*) values.
-				// Failure to do so would mean that we never update the year or may point to an
-				// orphaned artist id.
-				v.clear();
-				v.put(MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID, artistId);
-				v.put(MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR,tags.getFirst(MediaMetadataExtractor.YEAR));
-				mBackend.update(MediaLibrary.TABLE_ALBUMS, v, MediaLibrary.AlbumColumns._ID+"=?", new String[]{ Long.toString(albumId) });
-			}
-
-			v.clear();
+			// If the insert fails, the column probably already existed.
+			// We need to ensure that the album table is up-to-date as it contains
+			// some 'cached' (PRIMARY_*) values.
+			// Failure to do so would mean that we never update the year or may point to an
+			// orphaned artist id.
+			ContentValues u = new ContentValues();
+			u.put(MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID, artistId);
+			u.put(MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR,tags.getFirst(MediaMetadataExtractor.YEAR));
+			mBatch.upsert(MediaLibrary.TABLE_ALBUMS, v, u, MediaLibrary.AlbumColumns._ID+"="+albumId);
+
+			v = new ContentValues();
 			v.put(MediaLibrary.ContributorColumns._ID,               artistId);
 			v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR,      artist);
 			v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT, MediaLibrary.keyFor(artist));
-			mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS, null, v);
+			mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS, v);
 
-			v.clear();
+			v = new ContentValues();
 			v.put(MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID, artistId);
 			v.put(MediaLibrary.ContributorSongColumns.SONG_ID,         songId);
 			v.put(MediaLibrary.ContributorSongColumns.ROLE,            MediaLibrary.ROLE_ARTIST);
-			mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, null, v);
+			mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, v);
 
 			// Composers are optional: only add if we found it
 			String composer = tags.getFirst(MediaMetadataExtractor.COMPOSER);
 			if (composer != null) {
 				long composerId = MediaLibrary.hash63(composer);
-				v.clear();
+				v = new ContentValues();
 				v.put(MediaLibrary.ContributorColumns._ID,               composerId);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR,      composer);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT, MediaLibrary.keyFor(composer));
-				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS, null, v);
+				mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS, v);
 
-				v.clear();
+				v = new ContentValues();
 				v.put(MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID, composerId);
 				v.put(MediaLibrary.ContributorSongColumns.SONG_ID,         songId);
 				v.put(MediaLibrary.ContributorSongColumns.ROLE,            MediaLibrary.ROLE_COMPOSER);
-				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, null, v);
+				mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, v);
 			}
 
 			// Same as with composer: albumartist is an optional tag
 			String albumartist = tags.getFirst(MediaMetadataExtractor.ALBUMARTIST);
 			if (albumartist != null) {
 				long albumartistId = MediaLibrary.hash63(albumartist);
-				v.clear();
+				v = new ContentValues();
 				v.put(MediaLibrary.ContributorColumns._ID,               albumartistId);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR,      albumartist);
 				v.put(MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT, MediaLibrary.keyFor(albumartist));
-				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS, null, v);
+				mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS, v);
 
-				v.clear();
+				v = new ContentValues();
 				v.put(MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID, albumartistId);
 				v.put(MediaLibrary.ContributorSongColumns.SONG_ID,         songId);
 				v.put(MediaLibrary.ContributorSongColumns.ROLE,            MediaLibrary.ROLE_ALBUMARTIST);
-				mBackend.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, null, v);
+				mBatch.insert(MediaLibrary.TABLE_CONTRIBUTORS_SONGS, v);
 			}
 
 			// A song might be in multiple genres
+			StringBuilder allGenres = new StringBuilder();
 			if (tags.containsKey(MediaMetadataExtractor.GENRE)) {
 				ArrayList<String> genres = tags.get(MediaMetadataExtractor.GENRE);
 				for (String genre : genres) {
+					allGenres.append(genre).append(' ');
 					long genreId = MediaLibrary.hash63(genre);
-					v.clear();
+					v = new ContentValues();
 					v.put(MediaLibrary.GenreColumns._ID,         genreId);
 					v.put(MediaLibrary.GenreColumns._GENRE,      genre);
 					v.put(MediaLibrary.GenreColumns._GENRE_SORT, MediaLibrary.keyFor(genre));
-					mBackend.insert(MediaLibrary.TABLE_GENRES, null, v);
+					mBatch.insert(MediaLibrary.TABLE_GENRES, v);
 
-					v.clear();
+					v = new ContentValues();
 					v.put(MediaLibrary.GenreSongColumns._GENRE_ID, genreId);
 					v.put(MediaLibrary.GenreSongColumns.SONG_ID, songId);
-					mBackend.insert(MediaLibrary.TABLE_GENRES_SONGS, null, v);
+					mBatch.insert(MediaLibrary.TABLE_GENRES_SONGS, v);
 				}
 			}
+
+			mBatch.insert(MediaLibrary.TABLE_SEARCH, MediaLibrary.buildSearchEntry(songId, title, album, artist, albumartist, composer, allGenres.toString()));
 		} // end if (mustInsert)
 
+		// Remember the native ids, so that broadcasts do not need to look them up.
+		if (mustInsert && job.nativeIds != null)
+			queueNativeIds(songId, job.nativeIds);
+
+		// Keep the snapshot in sync with what we are going to write.
+		LongLongMap snapshot = mSongSnapshot;
+		if (snapshot != null) {
+			if (mustInsert) {
+				snapshot.put(songId, MediaLibraryBackend.packSnapshot(System.currentTimeMillis() / 1000, songFlags));
+			} else {
+				snapshot.remove(songId);
+			}
+		}
+
 		return hasChanged;
 	}
 
@@ -719,10 +1098,68 @@ public class MediaScanner implements Handler.Callback {
 			}
 		}
 
+		/**
+		 * A source of files to visit during a step
+		 */
+		abstract class Work {
+			/**
+			 * True if every returned file must be inspected, false if
+			 * directories should get read instead.
+			 */
+			final boolean inspectOnly;
+			Work(boolean inspectOnly) {
+				this.inspectOnly = inspectOnly;
+			}
+			/**
+			 * Returns the next file to visit, null if this work is done
+			 */
+			abstract File next();
+			/**
+			 * Returns the MediaStore ids of the file last returned
+			 * by next(), null if unknown
+			 */
+			long[] getNativeIds() {
+				return null;
+			}
+			/**
+			 * Called after next() returned null
+			 */
+			void finish() {}
+			/**
+			 * Called if the work is dropped before it finished
+			 */
+			void abort() {}
+		}
+
+		/**
+		 * Work visiting the entries of a single directory
+		 */
+		class DirectoryWork extends Work {
+			private final File[] mEntries;
+			private int mPos;
+			DirectoryWork(File[] entries) {
+				super(false);
+				mEntries = entries;
+			}
+			@Override
+			File next() {
+				if (mPos == mEntries.length)
+					return null;
+				File next = mEntries[mPos];
+				mEntries[mPos++] = null; // not needed anymore
+				return next;
+			}
+		}
+
 		/**
 		 * All steps in this plan
 		 */
 		private ArrayList<Step> mSteps;
+		/**
+		 * Stack of pending work of the current step, the
+		 * last element is processed first.
+		 */
+		private ArrayList<Work> mWork;
 		/**
 		 * Statistics of the currently running step
 		 */
@@ -730,6 +1167,7 @@ public class MediaScanner implements Handler.Callback {
 
 		MediaScanPlan() {
 			mSteps = new ArrayList<>();
+			mWork = new ArrayList<>();
 			mStats = new Statistics();
 		}
 
@@ -751,6 +1189,41 @@ public class MediaScanner implements Handler.Callback {
 			}
 		}
 
+		/**
+		 * Adds new work to the current step. It will be processed
+		 * before any other work which was already queued.
+		 *
+		 * @param work the work to add
+		 */
+		void pushWork(Work work) {
+			mWork.add(work);
+		}
+
+		/**
+		 * Returns the work to process next, null if there is none
+		 */
+		Work peekWork() {
+			return mWork.size() == 0 ? null : mWork.get(mWork.size() - 1);
+		}
+
+		/**
+		 * Removes the work returned by peekWork()
+		 */
+		void popWork() {
+			mWork.remove(mWork.size() - 1);
+		}
+
+		/**
+		 * Drops all pending work of the current step.
+		 * Must be called from the scanner thread.
+		 */
+		void clearWork() {
+			for (Work work : mWork) {
+				work.abort();
+			}
+			mWork.clear();
+		}
+
 		/**
 		 * Flushes all progress, turning the object into a fresh state
 		 */
@@ -36,7 +36,12 @@ public class MediaSchema {
 	  + MediaLibrary.SongColumns.MTIME        +" TIMESTAMP DEFAULT (strftime('%s', CURRENT_TIMESTAMP)), "
 	  + MediaLibrary.SongColumns.DURATION     +" INTEGER NOT NULL, "
 	  + MediaLibrary.SongColumns.PATH         +" VARCHAR(4096) NOT NULL, "
-	  + MediaLibrary.SongColumns.FLAGS        +" INTEGER NOT NULL DEFAULT 0 "
+	  + MediaLibrary.SongColumns.FLAGS        +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.SongColumns.REPLAYGAIN_TRACK +" REAL NOT NULL DEFAULT 0, "
+	  + MediaLibrary.SongColumns.REPLAYGAIN_ALBUM +" REAL NOT NULL DEFAULT 0, "
+	  + MediaLibrary.SongColumns.REPLAYGAIN_FOUND +" INTEGER, "
+	  + MediaLibrary.SongColumns.SEEK_START   +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.SongColumns.SEEK_END     +" INTEGER NOT NULL DEFAULT 0 "
 	  + ");";
 
 	/**
@@ -48,7 +53,12 @@ public class MediaSchema {
 	  + MediaLibrary.AlbumColumns.ALBUM_SORT        +" VARCHAR(64) NOT NULL, "
 	  + MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+" INTEGER, "
 	  + MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID +" INTEGER NOT NULL DEFAULT 0, "
-	  + MediaLibrary.AlbumColumns.MTIME             +" TIMESTAMP DEFAULT CURRENT_TIMESTAMP "
+	  + MediaLibrary.AlbumColumns.MTIME             +" TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+	  + MediaLibrary.AlbumColumns.TOTAL_DURATION    +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.AlbumColumns.SONG_COUNT        +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.AlbumColumns.DISC_COUNT        +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.AlbumColumns.MIN_YEAR          +" INTEGER, "
+	  + MediaLibrary.AlbumColumns.MAX_YEAR          +" INTEGER "
 	  + ");";
 
 	/**
@@ -106,7 +116,9 @@ public class MediaSchema {
 	private static final String DATABASE_CREATE_PLAYLISTS = "CREATE TABLE "+ MediaLibrary.TABLE_PLAYLISTS +" ("
 	  + MediaLibrary.PlaylistColumns._ID       +" INTEGER PRIMARY KEY, "
 	  + MediaLibrary.PlaylistColumns.NAME      +" TEXT NOT NULL, "
-	  + MediaLibrary.PlaylistColumns.NAME_SORT +" TEXT NOT NULL "
+	  + MediaLibrary.PlaylistColumns.NAME_SORT +" TEXT NOT NULL, "
+	  + MediaLibrary.PlaylistColumns.TOTAL_DURATION +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.PlaylistColumns.SONG_COUNT     +" INTEGER NOT NULL DEFAULT 0 "
 	  + ");";
 
 	/**
@@ -133,6 +145,122 @@ public class MediaSchema {
 	 +" ("+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+", "+MediaLibrary.PlaylistSongColumns.SONG_ID+")"
 	 +";";
 
+	/**
+	 * Index to return the songs of a playlist in order and to find
+	 * the neighbours of a position
+	 */
+	static final String INDEX_IDX_PLAYLIST_ID_POSITION = "CREATE INDEX IF NOT EXISTS idx_playlist_id_position ON "+MediaLibrary.TABLE_PLAYLISTS_SONGS
+	 +" ("+MediaLibrary.PlaylistSongColumns.PLAYLIST_ID+", "+MediaLibrary.PlaylistSongColumns.POSITION+")"
+	 +";";
+
+	/**
+	 * SQL Schema of `directories' table
+	 */
+	private static final String DATABASE_CREATE_DIRECTORIES = "CREATE TABLE "+ MediaLibrary.TABLE_DIRECTORIES + " ("
+	  + MediaLibrary.DirectoryColumns._ID          +" INTEGER PRIMARY KEY, "
+	  + MediaLibrary.DirectoryColumns.PARENT_ID    +" INTEGER NOT NULL, "
+	  + MediaLibrary.DirectoryColumns.PATH         +" VARCHAR(4096) NOT NULL, "
+	  + MediaLibrary.DirectoryColumns.MTIME        +" INTEGER NOT NULL DEFAULT 0, "
+	  + MediaLibrary.DirectoryColumns.CHILD_COUNT  +" INTEGER NOT NULL DEFAULT 0 "
+	  + ");";
+
+	/**
+	 * SQL Schema of the play history, trimmed to
+	 * MediaLibraryBackend.PLAY_HISTORY_SIZE entries
+	 */
+	static final String DATABASE_CREATE_PLAY_HISTORY = "CREATE TABLE "+ MediaLibrary.TABLE_PLAY_HISTORY + " ("
+	  + MediaLibrary.PlayHistoryColumns._ID      +" INTEGER PRIMARY KEY, "
+	  + MediaLibrary.PlayHistoryColumns.SONG_ID  +" INTEGER NOT NULL, "
+	  + MediaLibrary.PlayHistoryColumns.TIME     +" INTEGER NOT NULL DEFAULT (strftime('%s', CURRENT_TIMESTAMP)), "
+	  + MediaLibrary.PlayHistoryColumns.PLAYED   +" INTEGER NOT NULL "
+	  + ");";
+
+	/**
+	 * Index to purge the history of removed songs
+	 */
+	static final String INDEX_IDX_PLAY_HISTORY_SONG = "CREATE INDEX idx_play_history_song ON "+MediaLibrary.TABLE_PLAY_HISTORY
+	 +" ("+MediaLibrary.PlayHistoryColumns.SONG_ID+")"
+	 +";";
+
+	/**
+	 * SQL Schema of the MediaStore id cache
+	 */
+	static final String DATABASE_CREATE_NATIVE_IDS = "CREATE TABLE "+ MediaLibrary.TABLE_NATIVE_IDS + " ("
+	  + MediaLibrary.NativeIdColumns._ID              +" INTEGER PRIMARY KEY, "
+	  + MediaLibrary.NativeIdColumns.NATIVE_SONG_ID   +" INTEGER NOT NULL, "
+	  + MediaLibrary.NativeIdColumns.NATIVE_ALBUM_ID  +" INTEGER NOT NULL, "
+	  + MediaLibrary.NativeIdColumns.NATIVE_ARTIST_ID +" INTEGER NOT NULL "
+	  + ");";
+
+	/**
+	 * SQL Schema of the full text search index.
+	 * The docid of each row is the id of the song it describes.
+	 */
+	static final String DATABASE_CREATE_SEARCH = "CREATE VIRTUAL TABLE "+MediaLibrary.TABLE_SEARCH+" USING fts4("
+	  + MediaLibrary.SearchColumns.TITLE       +", "
+	  + MediaLibrary.SearchColumns.ALBUM       +", "
+	  + MediaLibrary.SearchColumns.ARTIST      +", "
+	  + MediaLibrary.SearchColumns.ALBUMARTIST +", "
+	  + MediaLibrary.SearchColumns.COMPOSER    +", "
+	  + MediaLibrary.SearchColumns.GENRE
+	  + ");";
+
+	/**
+	 * Index to select all subdirectories of a directory
+	 */
+	private static final String INDEX_IDX_DIRECTORIES_PARENT = "CREATE INDEX idx_directories_parent ON "+MediaLibrary.TABLE_DIRECTORIES
+	 +" ("+MediaLibrary.DirectoryColumns.PARENT_ID+")"
+	 +";";
+
+	/**
+	 * Indexes used to check if an entry became orphaned, see
+	 * MediaLibraryBackend.cleanOrphanedEntries()
+	 */
+	static final String INDEX_IDX_SONGS_ALBUM = "CREATE INDEX IF NOT EXISTS idx_songs_album ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.ALBUM_ID+")"
+	 +";";
+	static final String INDEX_IDX_CONTRIBUTORS_SONGS_CONTRIBUTOR = "CREATE INDEX IF NOT EXISTS idx_contributors_songs_contributor ON "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS
+	 +" ("+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+")"
+	 +";";
+	static final String INDEX_IDX_GENRES_SONGS_SONG = "CREATE INDEX IF NOT EXISTS idx_genres_songs_song ON "+MediaLibrary.TABLE_GENRES_SONGS
+	 +" ("+MediaLibrary.GenreSongColumns.SONG_ID+")"
+	 +";";
+	static final String INDEX_IDX_PLAYLISTS_SONGS_SONG = "CREATE INDEX IF NOT EXISTS idx_playlists_songs_song ON "+MediaLibrary.TABLE_PLAYLISTS_SONGS
+	 +" ("+MediaLibrary.PlaylistSongColumns.SONG_ID+")"
+	 +";";
+
+	/**
+	 * Index on song paths, used by path lookups (playlist imports)
+	 * and directory range queries, see MediaUtils.buildFileQuery()
+	 */
+	static final String INDEX_IDX_SONGS_PATH = "CREATE INDEX IF NOT EXISTS idx_songs_path ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.PATH+")"
+	 +";";
+
+	/**
+	 * Index on the play count, used to rank songs by popularity
+	 */
+	static final String INDEX_IDX_SONGS_PLAYCOUNT = "CREATE INDEX IF NOT EXISTS idx_songs_playcount ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.PLAYCOUNT+")"
+	 +";";
+
+	/**
+	 * Indexes on the sort keys, so that the library tabs can be
+	 * returned in order without sorting the whole table
+	 */
+	static final String INDEX_IDX_SONGS_TITLE_SORT = "CREATE INDEX IF NOT EXISTS idx_songs_title_sort ON "+MediaLibrary.TABLE_SONGS
+	 +" ("+MediaLibrary.SongColumns.TITLE_SORT+")"
+	 +";";
+	static final String INDEX_IDX_ALBUMS_ALBUM_SORT = "CREATE INDEX IF NOT EXISTS idx_albums_album_sort ON "+MediaLibrary.TABLE_ALBUMS
+	 +" ("+MediaLibrary.AlbumColumns.ALBUM_SORT+")"
+	 +";";
+	static final String INDEX_IDX_CONTRIBUTORS_SORT = "CREATE INDEX IF NOT EXISTS idx_contributors_sort ON "+MediaLibrary.TABLE_CONTRIBUTORS
+	 +" ("+MediaLibrary.ContributorColumns._CONTRIBUTOR_SORT+")"
+	 +";";
+	static final String INDEX_IDX_GENRES_SORT = "CREATE INDEX IF NOT EXISTS idx_genres_sort ON "+MediaLibrary.TABLE_GENRES
+	 +" ("+MediaLibrary.GenreColumns._GENRE_SORT+")"
+	 +";";
+
 	/**
 	 * Additional columns to select for artist info
 	 */
@@ -190,16 +318,35 @@ public class MediaSchema {
 	/**
 	 * View which includes album and artist information
 	 */
-	private static final String VIEW_CREATE_ALBUMS_ARTISTS = "CREATE VIEW "+ MediaLibrary.VIEW_ALBUMS_ARTISTS+ " AS "
-	  + "SELECT " + MediaLibrary.TABLE_ALBUMS + ".*, " + VIEW_ARTIST_SELECT + ", SUM(" + MediaLibrary.SongColumns.DURATION + ")" + " AS " + MediaLibrary.SongColumns.DURATION
+	static final String VIEW_CREATE_ALBUMS_ARTISTS = "CREATE VIEW "+ MediaLibrary.VIEW_ALBUMS_ARTISTS+ " AS "
+	  + "SELECT " + MediaLibrary.TABLE_ALBUMS + ".*, " + VIEW_ARTIST_SELECT + ", " + MediaLibrary.AlbumColumns.TOTAL_DURATION + " AS " + MediaLibrary.SongColumns.DURATION
 	  +" FROM " + MediaLibrary.TABLE_ALBUMS
 	  +" LEFT JOIN "+MediaLibrary.TABLE_CONTRIBUTORS+" AS _artist"
 	  +" ON _artist."+MediaLibrary.ContributorColumns._ID+" = "+MediaLibrary.TABLE_ALBUMS+"."+MediaLibrary.AlbumColumns.PRIMARY_ARTIST_ID
-	  +" LEFT JOIN " + MediaLibrary.TABLE_SONGS
-	  +" ON " + MediaLibrary.TABLE_SONGS + "." + MediaLibrary.SongColumns.ALBUM_ID + " = " + MediaLibrary.TABLE_ALBUMS + "." + MediaLibrary.AlbumColumns._ID
-	  +" GROUP BY " + MediaLibrary.TABLE_ALBUMS + "." + MediaLibrary.AlbumColumns._ID
 	  +" ;";
 
+	/**
+	 * Recomputes the aggregate columns of albums, to be followed
+	 * by a WHERE clause selecting the albums to update.
+	 */
+	static final String UPDATE_ALBUM_AGGREGATES = "UPDATE " + MediaLibrary.TABLE_ALBUMS + " SET "
+	  + MediaLibrary.AlbumColumns.TOTAL_DURATION + "=" + selectAlbumAggregate("IFNULL(SUM(" + MediaLibrary.SongColumns.DURATION + "), 0)") + ", "
+	  + MediaLibrary.AlbumColumns.SONG_COUNT + "=" + selectAlbumAggregate("COUNT(*)") + ", "
+	  + MediaLibrary.AlbumColumns.DISC_COUNT + "=" + selectAlbumAggregate("COUNT(DISTINCT " + MediaLibrary.SongColumns.DISC_NUMBER + ")") + ", "
+	  + MediaLibrary.AlbumColumns.MIN_YEAR + "=" + selectAlbumAggregate("MIN(" + MediaLibrary.SongColumns.YEAR + ")") + ", "
+	  + MediaLibrary.AlbumColumns.MAX_YEAR + "=" + selectAlbumAggregate("MAX(" + MediaLibrary.SongColumns.YEAR + ")");
+
+	/**
+	 * Recomputes the aggregate columns of playlists, to be followed
+	 * by a WHERE clause selecting the playlists to update.
+	 */
+	static final String UPDATE_PLAYLIST_AGGREGATES = "UPDATE " + MediaLibrary.TABLE_PLAYLISTS + " SET "
+	  + MediaLibrary.PlaylistColumns.TOTAL_DURATION + "=(SELECT IFNULL(SUM(_s." + MediaLibrary.SongColumns.DURATION + "), 0) FROM " + MediaLibrary.TABLE_PLAYLISTS_SONGS + " AS _ps"
+	  +" JOIN " + MediaLibrary.TABLE_SONGS + " AS _s ON _s." + MediaLibrary.SongColumns._ID + " = _ps." + MediaLibrary.PlaylistSongColumns.SONG_ID
+	  +" WHERE _ps." + MediaLibrary.PlaylistSongColumns.PLAYLIST_ID + " = " + MediaLibrary.TABLE_PLAYLISTS + "." + MediaLibrary.PlaylistColumns._ID + "), "
+	  + MediaLibrary.PlaylistColumns.SONG_COUNT + "=(SELECT COUNT(*) FROM " + MediaLibrary.TABLE_PLAYLISTS_SONGS
+	  +" WHERE " + MediaLibrary.PlaylistSongColumns.PLAYLIST_ID + " = " + MediaLibrary.TABLE_PLAYLISTS + "." + MediaLibrary.PlaylistColumns._ID + ")";
+
 	/**
 	 * View which includes artist information
 	 */
@@ -244,13 +391,19 @@ public class MediaSchema {
 	/**
 	 * View of all playlists, including additional information such as the duration.
 	 */
-	private static final String VIEW_CREATE_PLAYLISTS = "CREATE VIEW "+ MediaLibrary.VIEW_PLAYLISTS+ " AS "
-		+ "SELECT " + MediaLibrary.TABLE_PLAYLISTS + ".*, SUM(_s." + MediaLibrary.SongColumns.DURATION + ") AS " + MediaLibrary.SongColumns.DURATION + " FROM " + MediaLibrary.TABLE_PLAYLISTS
-		+" LEFT JOIN " + MediaLibrary.TABLE_PLAYLISTS_SONGS + " AS _ps ON " + MediaLibrary.TABLE_PLAYLISTS + "." + MediaLibrary.PlaylistColumns._ID +" = _ps." + MediaLibrary.PlaylistSongColumns.PLAYLIST_ID
-		+" LEFT JOIN " + MediaLibrary.TABLE_SONGS + " AS _s ON _s." + MediaLibrary.SongColumns._ID + " = _ps." + MediaLibrary.PlaylistSongColumns.SONG_ID
-		+" GROUP BY " + MediaLibrary.TABLE_PLAYLISTS + "." + MediaLibrary.PlaylistColumns._ID
+	static final String VIEW_CREATE_PLAYLISTS = "CREATE VIEW "+ MediaLibrary.VIEW_PLAYLISTS+ " AS "
+		+ "SELECT " + MediaLibrary.TABLE_PLAYLISTS + ".*, " + MediaLibrary.PlaylistColumns.TOTAL_DURATION + " AS " + MediaLibrary.SongColumns.DURATION
+		+" FROM " + MediaLibrary.TABLE_PLAYLISTS
 		+" ;";
 
+	/**
+	 * Returns a sub-select computing `aggregate' over all songs of the album being updated
+	 */
+	private static String selectAlbumAggregate(String aggregate) {
+		return "(SELECT " + aggregate + " FROM " + MediaLibrary.TABLE_SONGS
+		  + " WHERE " + MediaLibrary.SongColumns.ALBUM_ID + " = " + MediaLibrary.TABLE_ALBUMS + "." + MediaLibrary.AlbumColumns._ID + ")";
+	}
+
 	/**
 	 * Creates a new database schema on dbh
 	 *
@@ -268,6 +421,14 @@ public class MediaSchema {
 		dbh.execSQL(DATABASE_CREATE_PLAYLISTS_SONGS);
 		dbh.execSQL(INDEX_IDX_PLAYLIST_ID);
 		dbh.execSQL(INDEX_IDX_PLAYLIST_ID_SONG);
+		dbh.execSQL(INDEX_IDX_PLAYLIST_ID_POSITION);
+		dbh.execSQL(DATABASE_CREATE_DIRECTORIES);
+		dbh.execSQL(INDEX_IDX_DIRECTORIES_PARENT);
+		MediaMigrations.migrate_to_20261019(dbh);
+		MediaMigrations.migrate_to_20261024(dbh);
+		MediaMigrations.migrate_to_20261025(dbh);
+		MediaMigrations.migrate_to_20261026(dbh);
+		dbh.execSQL(DATABASE_CREATE_SEARCH);
 		dbh.execSQL(VIEW_CREATE_SONGS_ALBUMS_ARTISTS);
 		dbh.execSQL(VIEW_CREATE_SONGS_ALBUMS_ARTISTS_HUGE);
 		dbh.execSQL(VIEW_CREATE_ALBUMS_ARTISTS);
@@ -355,14 +516,46 @@ public class MediaSchema {
 			dbh.execSQL("DROP TABLE _migrate");
 		}
 
-		if (oldVersion < 20181021) {
-			// Recreate view to include album duration
-			dbh.execSQL("DROP VIEW " + MediaLibrary.VIEW_ALBUMS_ARTISTS);
-			dbh.execSQL(VIEW_CREATE_ALBUMS_ARTISTS);
+		// 20181021 and 20190210 added the album and playlist durations to
+		// their views: both are created by migrate_to_20261023 now, as
+		// the current views require its columns.
+
+
+		if (oldVersion < 20261018) {
+			dbh.execSQL(DATABASE_CREATE_DIRECTORIES);
+			dbh.execSQL(INDEX_IDX_DIRECTORIES_PARENT);
+		}
+
+		if (oldVersion < 20261019) {
+			MediaMigrations.migrate_to_20261019(dbh);
+		}
+
+		if (oldVersion < 20261020) {
+			MediaMigrations.migrate_to_20261020(dbh);
+		}
+
+		if (oldVersion < 20261021) {
+			MediaMigrations.migrate_to_20261021(dbh);
+		}
+
+		if (oldVersion < 20261022) {
+			MediaMigrations.migrate_to_20261022(dbh);
+		}
+
+		if (oldVersion < 20261023) {
+			MediaMigrations.migrate_to_20261023(dbh);
+		}
+
+		if (oldVersion < 20261024) {
+			MediaMigrations.migrate_to_20261024(dbh);
+		}
+
+		if (oldVersion < 20261025) {
+			MediaMigrations.migrate_to_20261025(dbh);
 		}
 
-		if (oldVersion < 20190210) {
-			dbh.execSQL(VIEW_CREATE_PLAYLISTS);
+		if (oldVersion < 20261026) {
+			MediaMigrations.migrate_to_20261026(dbh);
 		}
 	}
 
@@ -17,9 +17,12 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -28,20 +31,29 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.MediaMetadataRetriever;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import ch.blinkenlights.android.medialibrary.MediaLibrary;
@@ -85,10 +97,23 @@ public class CoverCache {
 	 * Use vanilla musics INLINE cover load mechanism
 	 */
 	public static final int COVER_MODE_INLINE = 0x8;
+	/**
+	 * Shared in-memory cache of decoded covers, checked before sBitmapDiskCache
+	 */
+	private static BitmapMemoryCache sBitmapMemoryCache;
 	/**
 	 * Shared on-disk cache class
 	 */
 	private static BitmapDiskCache sBitmapDiskCache;
+	/**
+	 * Number of on-disk cache hits and misses
+	 */
+	private static final AtomicLong sDiskHits = new AtomicLong();
+	private static final AtomicLong sDiskMisses = new AtomicLong();
+	/**
+	 * Shared index of the artwork files found in music directories
+	 */
+	private static final ArtworkIndex sArtworkIndex = new ArtworkIndex();
 	/**
 	 * Bitmask on how we are going to load coverart
 	 */
@@ -107,6 +132,7 @@ public class CoverCache {
 	 * @param context A context to use
 	 */
 	public CoverCache(Context context) {
+		initMemoryCache(context);
 		if (sBitmapDiskCache == null) {
 		    // modified by zollty 4 lines.
 			//sBitmapDiskCache = new BitmapDiskCache(context.getApplicationContext(), 25*1024*1024);
@@ -120,6 +146,110 @@ public class CoverCache {
 		}
 	}
 
+	/**
+	 * Initializes the in-memory cover cache, sized from the memory class
+	 * of this device. Does nothing if the cache was already initialized.
+	 *
+	 * @param context A context to use
+	 */
+	public static synchronized void initMemoryCache(Context context) {
+		if (sBitmapMemoryCache != null)
+			return;
+
+		final Context appContext = context.getApplicationContext();
+		ActivityManager am = (ActivityManager)appContext.getSystemService(Context.ACTIVITY_SERVICE);
+		int lruSize = am.getMemoryClass() / 8; // use ~12% for decoded covers
+		lruSize = lruSize < 4 ? 4 : lruSize; // LRU will always be at least 4MiB
+		sBitmapMemoryCache = new BitmapMemoryCache(lruSize*1024*1024);
+
+		appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+			@Override
+			public void onTrimMemory(int level) {
+				trimMemory(level);
+			}
+			@Override
+			public void onLowMemory() {
+				trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+			}
+			@Override
+			public void onConfigurationChanged(Configuration newConfig) {
+			}
+		});
+	}
+
+	/**
+	 * Shrinks the in-memory cache in response to memory pressure
+	 *
+	 * @param level the level passed to onTrimMemory()
+	 */
+	private static void trimMemory(int level) {
+		BitmapMemoryCache cache = sBitmapMemoryCache;
+		if (cache == null)
+			return;
+
+		Log.v("VanillaMusic", "Trimming cover cache, level="+level+", memory hits="+cache.hitCount()+", misses="+cache.missCount()
+		      +", disk hits="+sDiskHits.get()+", misses="+sDiskMisses.get());
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			cache.evictAll();
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			cache.trimToSize(cache.maxSize() / 2);
+		}
+	}
+
+	/**
+	 * Returns a cover from the in-memory cache, never hits the disk.
+	 * Safe to call from the UI thread.
+	 *
+	 * @param key The cache key to use
+	 * @return bitmap or null on cache miss
+	 */
+	public static Bitmap getCachedCover(CoverKey key) {
+		BitmapMemoryCache cache = sBitmapMemoryCache;
+		return cache == null ? null : cache.get(key);
+	}
+
+	/**
+	 * Stores a cover in the in-memory cache only
+	 *
+	 * @param key The cache key to use
+	 * @param cover The bitmap to store
+	 */
+	public static void putCachedCover(CoverKey key, Bitmap cover) {
+		BitmapMemoryCache cache = sBitmapMemoryCache;
+		if (cache != null)
+			cache.put(key, cover);
+	}
+
+	/**
+	 * Returns the number of in-memory cache hits
+	 */
+	public static int getMemoryHitCount() {
+		BitmapMemoryCache cache = sBitmapMemoryCache;
+		return cache == null ? 0 : cache.hitCount();
+	}
+
+	/**
+	 * Returns the number of in-memory cache misses
+	 */
+	public static int getMemoryMissCount() {
+		BitmapMemoryCache cache = sBitmapMemoryCache;
+		return cache == null ? 0 : cache.missCount();
+	}
+
+	/**
+	 * Returns the number of covers found in the on-disk cache
+	 */
+	public static long getDiskHitCount() {
+		return sDiskHits.get();
+	}
+
+	/**
+	 * Returns the number of lookups which missed the on-disk cache
+	 */
+	public static long getDiskMissCount() {
+		return sDiskMisses.get();
+	}
+
 	/**
 	 * Returns a (possibly uncached) cover for the song - will return null if the song has no cover
 	 *
@@ -135,8 +265,9 @@ public class CoverCache {
 		if (cover == null) {
 			cover = sBitmapDiskCache.createBitmap(ctx, song, size);
 			if (cover != null) {
+				// The memory tier keeps returning this version, so there is
+				// no need to read back the lossy copy stored on disk.
 				storeCover(key, cover);
-				cover = getStoredCover(key); // return lossy version to avoid random quality changes
 			}
 		}
 		return cover;
@@ -155,24 +286,35 @@ public class CoverCache {
 	}
 
 	/**
-	 * Returns the on-disk cached version of the cover.
-	 * Should only be used on a background thread
+	 * Returns the cached version of the cover, checking the in-memory
+	 * cache first. Should only be used on a background thread
 	 *
 	 * @param key The cache key to use
 	 * @return bitmap or null on cache miss
 	 */
 	private Bitmap getStoredCover(CoverKey key) {
-		return sBitmapDiskCache.get(key);
+		Bitmap cover = sBitmapMemoryCache.get(key);
+		if (cover == null) {
+			cover = sBitmapDiskCache.get(key);
+			if (cover != null) {
+				sDiskHits.incrementAndGet();
+				sBitmapMemoryCache.put(key, cover);
+			} else {
+				sDiskMisses.incrementAndGet();
+			}
+		}
+		return cover;
 	}
 
 	/**
-	 * Stores a new entry in the on-disk cache
+	 * Stores a new entry in the in-memory and on-disk cache
 	 * Use getStoredCover to read the cached contents back
 	 *
 	 * @param key The cache key to use
 	 * @param cover The bitmap to store
 	 */
 	private void storeCover(CoverKey key, Bitmap cover) {
+		sBitmapMemoryCache.put(key, cover);
 		sBitmapDiskCache.put(key, cover);
 	}
 
@@ -180,6 +322,10 @@ public class CoverCache {
 	 * Deletes all items hold in the cover caches
 	 */
 	public static void evictAll() {
+		NowPlayingArtwork.invalidate();
+		if (sBitmapMemoryCache != null) {
+			sBitmapMemoryCache.evictAll();
+		}
 		if (sBitmapDiskCache != null) {
 			sBitmapDiskCache.evictAll();
 		}
@@ -197,6 +343,7 @@ public class CoverCache {
 		SharedPreferences.Editor ed = settings.edit();
 		ed.putInt("mpic_seed", seed);
 		ed.apply();
+		NowPlayingArtwork.invalidate();
 	}
 
 	public Bitmap getCoverFromSong2(Context ctx, Song song, int size) {
@@ -249,40 +396,25 @@ public class CoverCache {
 		// xxxx/10-MPIC/
 		String picPathStr = song.path.substring(0, song.path.indexOf("10-MUSIC")) + "10-MPIC";
 		final File picPath = new File(picPathStr);
-		File[] files = picPath.listFiles();
-		if(files == null || files.length==0) {
+		// sorted by name
+		String[] images = sArtworkIndex.getImages(picPath);
+		if(images == null) {
 			Log.e("VanillaMusic", picPathStr + ": this picPath not find or is empty.");
 			return null;
 		}
-		List<File> fileList = new ArrayList<>();
-		for(File f: files) {
-			String tmp = f.getAbsolutePath();
-			if (tmp.endsWith(".jpg")
-					|| tmp.endsWith(".jpeg")
-					|| tmp.endsWith(".png")) {
-				fileList.add(f);
-			}
-		}
-		if(fileList.isEmpty()) {
+		if(images.length == 0) {
 			Log.e("VanillaMusic", picPathStr + ": this picPath is empty.");
 			return null;
 		}
-		// sort list
-		Collections.sort(fileList, new Comparator<File>() {
-			@Override
-			public int compare(File o1, File o2) {
-				return o1.getName().compareTo(o2.getName());
-			}
-		});
-		if (msize != fileList.size()) {
-			msize = fileList.size();
+		if (msize != images.length) {
+			msize = images.length;
 			SharedPreferences.Editor ed = settings.edit();
 			ed.putInt("mpic_size", msize);
 			ed.apply();
 		}
 		// each song map a fixed value
 		int k = getSongIdHash(song, msize, seed); // song.id = MediaLibrary.hash63(song.path)
-		File picFile = fileList.get(k);
+		File picFile = new File(picPath, images[k]);
 		// key is the id (base on k with song.path and pic files size)
 		CoverKey picKey = getPicCoverKey(k, size);//new CoverCache.CoverKey(0, k, size);
 		Bitmap cover = null;
@@ -355,6 +487,147 @@ public class CoverCache {
 
 	}
 
+	/**
+	 * A LRU cache implementation, using the CoverKey as key to store Bitmap objects
+	 *
+	 * Note that the implementation does not override create() in order to enable
+	 * the use of fetch-if-cached functions: createBitmap() is therefore called
+	 * by CoverCache itself.
+	 */
+	private static class BitmapMemoryCache extends LruCache<CoverKey, Bitmap> {
+		/**
+		 * Creates a new in-memory LRU cache
+		 *
+		 * @param size the lru cache size in bytes
+		 */
+		public BitmapMemoryCache(int size) {
+			super(size);
+		}
+
+		/**
+		 * Returns the cache size in bytes, not objects
+		 */
+		@Override
+		protected int sizeOf(CoverKey key, Bitmap value) {
+			return value.getByteCount();
+		}
+	}
+
+	/**
+	 * Caches the artwork files of recently used directories, so that
+	 * looking up a cover does not need to list the directory every time.
+	 * Entries are invalidated if the mtime of the directory changes.
+	 */
+	private static class ArtworkIndex {
+		/**
+		 * Number of directories to keep in the index
+		 */
+		private final static int MAX_DIRECTORIES = 64;
+		/**
+		 * Indexed directories, least recently used first
+		 */
+		private final LinkedHashMap<File, Entry> mEntries = new LinkedHashMap<File, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<File, Entry> eldest) {
+				return size() > MAX_DIRECTORIES;
+			}
+		};
+
+		private static class Entry {
+			/**
+			 * mtime of the directory while it was listed
+			 */
+			final long mtime;
+			/**
+			 * Names of all artwork files, sorted by name
+			 */
+			final String[] images;
+			/**
+			 * Maps file names without extension to artwork file names
+			 */
+			final HashMap<String, String> byBaseName;
+
+			Entry(long mtime, String[] images) {
+				this.mtime = mtime;
+				this.images = images;
+				this.byBaseName = new HashMap<>();
+				// images are sorted: keep the first match, as listing would do.
+				for (String name : images) {
+					String baseName = stripExtension(name);
+					if (!byBaseName.containsKey(baseName))
+						byBaseName.put(baseName, name);
+				}
+			}
+		}
+
+		/**
+		 * Returns the names of all artwork files in given directory,
+		 * sorted by name
+		 *
+		 * @param dir the directory to check
+		 * @return the file names or null if dir could not be listed
+		 */
+		String[] getImages(File dir) {
+			Entry entry = getEntry(dir);
+			return entry == null ? null : entry.images;
+		}
+
+		/**
+		 * Returns the artwork file named like given file
+		 * (eg. 'song.jpg' for 'song.mp3')
+		 *
+		 * @param file the file to search artwork for
+		 * @return the artwork file or null if there is none
+		 */
+		File getSidecar(File file) {
+			File dir = file.getParentFile();
+			Entry entry = getEntry(dir);
+			if (entry == null)
+				return null;
+
+			String name = entry.byBaseName.get(stripExtension(file.getName()));
+			return name == null ? null : new File(dir, name);
+		}
+
+		/**
+		 * Returns the index entry of given directory, listing it if
+		 * it was unknown or modified since it was indexed
+		 */
+		private Entry getEntry(File dir) {
+			if (dir == null)
+				return null;
+
+			long mtime = dir.lastModified();
+			synchronized (mEntries) {
+				Entry entry = mEntries.get(dir);
+				if (entry != null && entry.mtime == mtime)
+					return entry;
+			}
+
+			String[] names = dir.list();
+			if (names == null)
+				return null;
+
+			ArrayList<String> images = new ArrayList<>();
+			for (String name : names) {
+				if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png"))
+					images.add(name);
+			}
+			Collections.sort(images);
+
+			Entry entry = new Entry(mtime, images.toArray(new String[images.size()]));
+			synchronized (mEntries) {
+				mEntries.put(dir, entry);
+			}
+			return entry;
+		}
+
+		private static String stripExtension(String name) {
+			int extIndex = name.lastIndexOf('.');
+			return extIndex < 0 ? name : name.substring(0, extIndex);
+		}
+	}
+
 	private static class BitmapDiskCache extends SQLiteOpenHelper {
 		/**
 		 * Maximal cache size to use in bytes
@@ -373,17 +646,57 @@ public class CoverCache {
 			    Pattern.compile("(?i).+/(CD|FRONT|ARTWORK|FOLDER)\\.(JPE?G|PNG|WEBP)$"),
 			    Pattern.compile("(?i).+\\.(JPE?G|PNG|WEBP)$") };
 		/**
-		 * Projection of all columns in the database
-		 */
-		private final static String[] FULL_PROJECTION = {"id", "size", "expires", "blob"};
-		/**
-		 * Projection of metadata-only columns
+		 * Projection of all index columns. Image data lives in files: `blob'
+		 * is only set for entries created by old versions, which did not
+		 * migrate yet.
 		 */
-		private final static String[] META_PROJECTION = {"id", "size", "expires"};
+		private final static String[] INDEX_PROJECTION = {"id", "size", "expires", "last_access", "blob IS NOT NULL"};
 		/**
 		 * Restrict lifetime of cached objects to, at most, OBJECT_TTL
 		 */
 		private final static int OBJECT_TTL = 86400*28;
+		/**
+		 * Only update last_access of an entry if it is older than this many seconds:
+		 * keeps reads from turning into writes while still being accurate enough for LRU
+		 */
+		private final static int ACCESS_GRANULARITY = 3600;
+		/**
+		 * Eviction removes entries until the cache uses less than this
+		 * percentage of mCacheSize
+		 */
+		private final static int LOW_WATER_PERCENT = 90;
+		/**
+		 * Number of entries to delete per eviction statement
+		 */
+		private final static int EVICT_BATCH_SIZE = 50;
+		/**
+		 * Number of legacy blobs to move into files per migration step
+		 */
+		private final static int MIGRATE_BATCH_SIZE = 20;
+		/**
+		 * Message to trim the cache down to its low-water mark
+		 */
+		private final static int MSG_TRIM = 1;
+		/**
+		 * Message to move legacy blobs out of the database
+		 */
+		private final static int MSG_MIGRATE = 2;
+		/**
+		 * Directory holding the image files, sharded into 256 subdirectories
+		 */
+		private final File mBlobDir;
+		/**
+		 * True if any legacy blob was moved out of the database
+		 */
+		private boolean mMigrated;
+		/**
+		 * Bytes used by all cached entries, -1 if not known yet
+		 */
+		private final AtomicLong mUsedSpace = new AtomicLong(-1);
+		/**
+		 * Handler of our background thread, used for eviction
+		 */
+		private final Handler mHandler;
 
 		/**
 		 * Creates a new BitmapDiskCache instance
@@ -392,8 +705,97 @@ public class CoverCache {
 		 * @param cacheSize The maximal amount of disk space to use in bytes
 		 */
 		public BitmapDiskCache(Context context, long cacheSize) {
-			super(context, "covercache.db", null, 1 /* version */);
+			super(context, "covercache.db", null, 2 /* version */);
 			mCacheSize = cacheSize;
+			mBlobDir = new File(context.getCacheDir(), "covercache");
+
+			HandlerThread thread = new HandlerThread("CoverCacheTrim", Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			mHandler = new Handler(thread.getLooper(), new Handler.Callback() {
+				@Override
+				public boolean handleMessage(Message message) {
+					switch (message.what) {
+						case MSG_TRIM:
+							trim(mCacheSize * LOW_WATER_PERCENT / 100);
+							return true;
+						case MSG_MIGRATE:
+							if (migrateBlobs(MIGRATE_BATCH_SIZE) == MIGRATE_BATCH_SIZE) {
+								mHandler.sendEmptyMessage(MSG_MIGRATE);
+							} else if (mMigrated) {
+								// Give the space used by the old blobs back.
+								getWritableDatabase().execSQL("VACUUM");
+								mMigrated = false;
+							}
+							return true;
+					}
+					return false;
+				}
+			});
+			mHandler.sendEmptyMessage(MSG_MIGRATE);
+		}
+
+		/**
+		 * Returns the file holding the image data of given entry
+		 */
+		private File getBlobFile(long id) {
+			return new File(mBlobDir, (id & 0xFF)+"/"+id+".jpg");
+		}
+
+		/**
+		 * Writes image data to a temporary file next to the file of given entry.
+		 * Use File.renameTo() to move it into place.
+		 *
+		 * @return the temporary file
+		 */
+		private File writeBlobFile(long id, ByteArrayOutputStream data) throws IOException {
+			File file = getBlobFile(id);
+			File tmp = new File(file.getPath()+".tmp");
+			tmp.getParentFile().mkdirs();
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				data.writeTo(out);
+			} finally {
+				out.close();
+			}
+			return tmp;
+		}
+
+		/**
+		 * Moves image data stored by old versions from the database
+		 * into files
+		 *
+		 * @param limit the maximum number of entries to migrate
+		 * @return the number of checked entries
+		 */
+		private int migrateBlobs(int limit) {
+			SQLiteDatabase dbh = getWritableDatabase();
+			Cursor cursor = dbh.query(TABLE_NAME, new String[]{ "id", "blob" }, "blob IS NOT NULL", null, null, null, null, Integer.toString(limit));
+			if (cursor == null)
+				return 0;
+
+			int count = 0;
+			while (cursor.moveToNext()) {
+				long id = cursor.getLong(0);
+				String[] args = { Long.toString(id) };
+				try {
+					ByteArrayOutputStream data = new ByteArrayOutputStream();
+					data.write(cursor.getBlob(1));
+					File tmp = writeBlobFile(id, data);
+					if (!tmp.renameTo(getBlobFile(id)))
+						throw new IOException("rename failed");
+					ContentValues values = new ContentValues();
+					values.putNull("blob");
+					dbh.update(TABLE_NAME, values, "id=?", args);
+				} catch (IOException e) {
+					// Entry is lost, but the cache stays consistent.
+					Log.v("VanillaMusic", "Failed to migrate cover "+id+": "+e);
+					deleteWithLimit(dbh, "id=?", args, null, 1);
+				}
+				mMigrated = true;
+				count++;
+			}
+			cursor.close();
+			return count;
 		}
 
 		/**
@@ -401,8 +803,9 @@ public class CoverCache {
 		 */
 		@Override
 		public void onCreate(SQLiteDatabase dbh) {
-			dbh.execSQL("CREATE TABLE "+TABLE_NAME+" (id INTEGER, expires INTEGER, size INTEGER, blob BLOB);");
+			dbh.execSQL("CREATE TABLE "+TABLE_NAME+" (id INTEGER, expires INTEGER, size INTEGER, blob BLOB, last_access INTEGER NOT NULL DEFAULT 0);");
 			dbh.execSQL("CREATE UNIQUE INDEX idx ON "+TABLE_NAME+" (id);");
+			dbh.execSQL("CREATE INDEX idx_last_access ON "+TABLE_NAME+" (last_access);");
 		}
 
 		/**
@@ -410,40 +813,39 @@ public class CoverCache {
 		 */
 		@Override
 		public void onUpgrade(SQLiteDatabase dbh, int oldVersion, int newVersion) {
-			// first db -> nothing to upgrade
+			if (oldVersion < 2) {
+				// Existing entries are considered to be the least recently used ones.
+				dbh.execSQL("ALTER TABLE "+TABLE_NAME+" ADD COLUMN last_access INTEGER NOT NULL DEFAULT 0");
+				dbh.execSQL("CREATE INDEX idx_last_access ON "+TABLE_NAME+" (last_access);");
+			}
+		}
+
+		/**
+		 * Called by SQLiteOpenHelper after the database was opened:
+		 * this is the only time we need to sum up the size of all entries.
+		 */
+		@Override
+		public void onOpen(SQLiteDatabase dbh) {
+			mUsedSpace.set(getUsedSpace(dbh));
 		}
 
 		/**
-		 * Trims the on disk cache to given size
+		 * Trims the on disk cache to given size, evicting expired
+		 * entries first and the least recently used ones afterwards
 		 *
 		 * @param maxCacheSize Trim cache to this many bytes
 		 */
 		private void trim(long maxCacheSize) {
 			SQLiteDatabase dbh = getWritableDatabase();
-			long availableSpace = maxCacheSize - getUsedSpace(dbh);
-			if (availableSpace > 0) {
-				return;
+			String now = Long.toString(getUnixTime());
+
+			while (mUsedSpace.get() > maxCacheSize) {
+				if (deleteWithLimit(dbh, "expires < ?", new String[] { now }, null, EVICT_BATCH_SIZE) == 0)
+					break;
 			}
-			// Try to evict all expired entries first
-			int affected = deleteExpiredWithLimit(dbh, 10);
-			if (affected > 0)
-				availableSpace = maxCacheSize - getUsedSpace(dbh);
-
-			if (availableSpace < 0) {
-				// still not enough space: purge by expire date (this kills random rows as expire times are random)
-				Cursor cursor = dbh.query(TABLE_NAME, META_PROJECTION, null, null, null, null, "expires ASC");
-				if (cursor != null) {
-					int max = 10;
-					StringBuilder argsb = new StringBuilder();
-					while (cursor.moveToNext() && max-- > 0) {
-						int id = cursor.getInt(0);
-						argsb.append(id).append(",");
-					}
-					cursor.close();
-					if (argsb.length() > 0) {
-						dbh.delete(TABLE_NAME, "id in (" + argsb.substring(0, argsb.length() - 1) + ")", null);
-					}
-				}
+			while (mUsedSpace.get() > maxCacheSize) {
+				if (deleteWithLimit(dbh, null, null, "last_access ASC", EVICT_BATCH_SIZE) == 0)
+					break;
 			}
 		}
 
@@ -455,30 +857,49 @@ public class CoverCache {
 			SQLiteDatabase dbh = getWritableDatabase();
 			// Just drop the whole database (probably a call from evictAll)
 			dbh.delete(TABLE_NAME, "1", null);
+			mUsedSpace.set(0);
+			File[] shards = mBlobDir.listFiles();
+			if (shards != null) {
+				for (File shard : shards)
+					MediaUtils.deleteFile(shard);
+			}
 			// and release the dbh
 			dbh.close();
 		}
 
 		public void evictExpired() {
-			deleteExpiredWithLimit(getWritableDatabase(), 10);
+			deleteWithLimit(getWritableDatabase(), "expires < ?", new String[] { Long.toString(getUnixTime())}, null, 10);
 		}
 
-		// equals: dbh.delete(TABLE_NAME, "expires < ? LIMIT 10", new String[] { Long.toString(getUnixTime())});
-		private int deleteExpiredWithLimit(SQLiteDatabase dbh, int size) {
-			Cursor cursor = dbh.query(TABLE_NAME, META_PROJECTION, "expires < ? LIMIT " + size, new String[] { Long.toString(getUnixTime())}, null, null, null);
+		/**
+		 * Deletes up to `limit' entries matching the selection and
+		 * updates the used space accordingly
+		 *
+		 * @return the number of deleted entries
+		 */
+		private int deleteWithLimit(SQLiteDatabase dbh, String selection, String[] selectionArgs, String orderBy, int limit) {
+			Cursor cursor = dbh.query(TABLE_NAME, new String[]{ "id", "size" }, selection, selectionArgs, null, null, orderBy, Integer.toString(limit));
+			int deleted = 0;
 			if (cursor != null) {
 				StringBuilder argsb = new StringBuilder();
+				long size = 0;
+				ArrayList<File> files = new ArrayList<>();
 				while (cursor.moveToNext()) {
-					int id = cursor.getInt(0);
-					argsb.append(id).append(",");
+					if (argsb.length() > 0)
+						argsb.append(",");
+					argsb.append(cursor.getLong(0));
+					size += cursor.getLong(1);
+					files.add(getBlobFile(cursor.getLong(0)));
 				}
 				cursor.close();
 				if (argsb.length() > 0) {
-					return dbh.delete(TABLE_NAME, "id in (" + argsb.substring(0, argsb.length() - 1) + ")", null);
-					// Log.e("VanillaMusic", count + " = will delete: " + argsb);
+					deleted = dbh.delete(TABLE_NAME, "id in (" + argsb + ")", null);
+					mUsedSpace.addAndGet(-size);
+					for (File file : files)
+						file.delete();
 				}
 			}
-			return 0;
+			return deleted;
 		}
 
 		/**
@@ -506,7 +927,7 @@ public class CoverCache {
 		 * @return long the space used in bytes
 		 */
 		private long getUsedSpace(SQLiteDatabase dbh) {
-			long usedSpace = -1;
+			long usedSpace = 0;
 			Cursor cursor = dbh.query(TABLE_NAME, new String[]{"SUM(size)"}, null, null, null, null, null);
 			if (cursor != null) {
 				if (cursor.moveToNext())
@@ -517,7 +938,8 @@ public class CoverCache {
 		}
 
 		/**
-		 * Stores a bitmap in the disk cache, does not update existing objects
+		 * Stores a bitmap in the disk cache, does not update existing objects.
+		 * Triggers a background eviction if the cache grew too large.
 		 *
 		 * @param key The cover key to use
 		 * @param cover The cover to store as bitmap
@@ -525,9 +947,6 @@ public class CoverCache {
 		public void put(CoverKey key, Bitmap cover) {
 			SQLiteDatabase dbh = getWritableDatabase();
 
-			// Ensure that there is some space left
-			trim(mCacheSize);
-
 			ByteArrayOutputStream out = new ByteArrayOutputStream();
 			// We store a lossy version as this image was
 			// created from the original source (and will not be re-compressed)
@@ -536,15 +955,29 @@ public class CoverCache {
 			// modified by zollty, make cache last 31 days.
 //			Random rnd = new Random();
 //			long ttl = getUnixTime() + rnd.nextInt(OBJECT_TTL);
-			long ttl = getUnixTime() + OBJECT_TTL;
+			long now = getUnixTime();
+			long ttl = now + OBJECT_TTL;
+
+			File tmp;
+			try {
+				tmp = writeBlobFile(key.hashCode(), out);
+			} catch (IOException e) {
+				Log.v("VanillaMusic", "Failed to store cover "+key+": "+e);
+				return;
+			}
 
 			ContentValues values = new ContentValues();
-			values.put("id"     , key.hashCode());
-			values.put("expires", ttl);
-			values.put("size"   , out.size());
-			values.put("blob"   , out.toByteArray());
+			values.put("id"         , key.hashCode());
+			values.put("expires"    , ttl);
+			values.put("size"       , out.size());
+			values.put("last_access", now);
 
-			dbh.insert(TABLE_NAME, null, values);
+			if (dbh.insert(TABLE_NAME, null, values) != -1 && tmp.renameTo(getBlobFile(key.hashCode()))) {
+				if (mUsedSpace.addAndGet(out.size()) > mCacheSize && !mHandler.hasMessages(MSG_TRIM))
+					mHandler.sendEmptyMessage(MSG_TRIM);
+			} else {
+				tmp.delete();
+			}
 		}
 
 		/**
@@ -554,25 +987,49 @@ public class CoverCache {
 		 * @return a cached bitmap, null on cache miss
 		 */
 		public Bitmap get(CoverKey key) {
-			Bitmap cover = null;
-
 			SQLiteDatabase dbh = getWritableDatabase(); // may also delete
 			String selection = "id=?";
 			String[] selectionArgs = { Long.toString(key.hashCode()) };
-			Cursor cursor = dbh.query(TABLE_NAME, FULL_PROJECTION, selection, selectionArgs, null, null, null);
-			if (cursor != null) {
-				if (cursor.moveToFirst()) {
-					long expires = cursor.getLong(2);
-					byte[] blob = cursor.getBlob(3);
-
-					if (isExpired(expires)) {
-						dbh.delete(TABLE_NAME, selection, selectionArgs);
-					} else {
-						ByteArrayInputStream stream = new ByteArrayInputStream(blob);
-						cover = BitmapFactory.decodeStream(stream);
-					}
-				}
+			Cursor cursor = dbh.query(TABLE_NAME, INDEX_PROJECTION, selection, selectionArgs, null, null, null);
+			if (cursor == null)
+				return null;
+
+			boolean found = cursor.moveToFirst();
+			long expires = found ? cursor.getLong(2) : 0;
+			long lastAccess = found ? cursor.getLong(3) : 0;
+			boolean legacy = found && cursor.getInt(4) != 0;
+			cursor.close();
+
+			if (!found)
+				return null;
+
+			if (isExpired(expires)) {
+				deleteWithLimit(dbh, selection, selectionArgs, null, 1);
+				return null;
+			}
+
+			Bitmap cover = null;
+			if (legacy) {
+				// not migrated yet: migrateBlobs() will take care of it
+				cursor = dbh.query(TABLE_NAME, new String[]{ "blob" }, selection, selectionArgs, null, null, null);
+				if (cursor.moveToFirst())
+					cover = BitmapFactory.decodeStream(new ByteArrayInputStream(cursor.getBlob(0)));
 				cursor.close();
+			} else {
+				// streams the file directly from disk
+				cover = BitmapFactory.decodeFile(getBlobFile(key.hashCode()).getPath());
+				if (cover == null) {
+					// file vanished (e.g. cache dir was cleared by the system)
+					deleteWithLimit(dbh, selection, selectionArgs, null, 1);
+					return null;
+				}
+			}
+
+			long now = getUnixTime();
+			if (cover != null && now - lastAccess > ACCESS_GRANULARITY) {
+				ContentValues values = new ContentValues();
+				values.put("last_access", now);
+				dbh.update(TABLE_NAME, values, selection, selectionArgs);
 			}
 
 			return cover;
@@ -601,21 +1058,10 @@ public class CoverCache {
 					// downloads folder: Picking files from there would lead to a false positive
 					// in most cases
 					if (baseFile.getParentFile().equals(sDownloadsDir) == false) {
-						for (final File entry : baseFile.getParentFile().listFiles()) {
-							String tmp = entry.getAbsolutePath();
-							int extIndex = tmp.lastIndexOf('.');
-							tmp = tmp.substring(0, extIndex);
-							extIndex = song.path.lastIndexOf('.');
-							String tmp2 = song.path.substring(0, extIndex);
-
-							if (tmp2.equals(tmp) &&
-								(entry.getAbsolutePath().endsWith(".jpg")
-									|| entry.getAbsolutePath().endsWith(".jpeg")
-									|| entry.getAbsolutePath().endsWith(".png"))) {
-								inputStream = new FileInputStream(entry);
-								sampleInputStream = new FileInputStream(entry);
-								break;
-							}
+						final File entry = sArtworkIndex.getSidecar(baseFile);
+						if (entry != null) {
+							inputStream = new FileInputStream(entry);
+							sampleInputStream = new FileInputStream(entry);
 						}
 					}
 				}
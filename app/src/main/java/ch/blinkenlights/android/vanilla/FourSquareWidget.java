@@ -75,7 +75,6 @@ public class FourSquareWidget extends AppWidgetProvider {
 		sEnabled = manager.getAppWidgetIds(new ComponentName(context, FourSquareWidget.class)).length != 0;
 	}
 
-	private static Bitmap bmpLast = null;
 	/**
 	 * Populate the widgets with the given ids with the given info.
 	 *
@@ -110,7 +109,7 @@ public class FourSquareWidget extends AppWidgetProvider {
 			views.setViewVisibility(R.id.buttons, View.VISIBLE);
 			views.setTextViewText(R.id.title, song.title);
 			//views.setTextViewText(R.id.artist, song.artist);
-			cover = song.getMediumCover(context);
+			cover = NowPlayingArtwork.getMediumCover(context, song);
 			// Log.e("VanillaMusic", song.title + ":1 coverSize = " + cover.getByteCount());
 			playResource = playing ? R.drawable.hidden_pause : R.drawable.hidden_play;
 			nextResource = R.drawable.hidden_next;
@@ -124,11 +123,6 @@ public class FourSquareWidget extends AppWidgetProvider {
 		} else {
 			views.setImageViewBitmap(R.id.cover, cover);
 			//Log.e("VanillaMusic", song.title + ": coverSize = " + cover.getByteCount());
-			if (bmpLast != null) {
-				bmpLast.recycle();
-				bmpLast=null;//you must do it
-			}
-			bmpLast = cover;
 		}
 
 		Intent intent;
@@ -114,7 +114,7 @@ public class FourWhiteWidget extends AppWidgetProvider {
 			views.setViewVisibility(R.id.title, View.VISIBLE);
 			views.setTextViewText(R.id.title, song.title);
 			views.setTextViewText(R.id.artist, song.artist);
-			Bitmap cover = song.getMediumCover(context);
+			Bitmap cover = NowPlayingArtwork.getMediumCover(context, song);
 			if (cover == null) {
 				views.setViewVisibility(R.id.cover, View.INVISIBLE);
 			} else {
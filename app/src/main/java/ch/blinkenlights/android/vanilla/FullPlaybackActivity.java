@@ -23,6 +23,7 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.GainValues;
 import ch.blinkenlights.android.medialibrary.MediaMetadataExtractor;
 
 import java.util.ArrayList;
@@ -542,7 +543,7 @@ public class FullPlaybackActivity extends SlidingPlaybackActivity
 
 			mFormat = data.getFormat();
 
-			BastpUtil.GainValues rg = PlaybackService.get(this).getReplayGainValues(song.path);
+			GainValues rg = PlaybackService.get(this).getReplayGainValues(song);
 			mReplayGain = String.format("track=%.2f, album=%.2f", rg.track, rg.album);
 		}
 
@@ -17,7 +17,6 @@
 
 package ch.blinkenlights.android.vanilla;
 
-import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -29,14 +28,13 @@ import android.os.HandlerThread;
 import android.os.Message;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.util.LruCache;
 import android.widget.ImageView;
 
 /**
  * LazyCoverView implements a 'song-aware' ImageView
  *
  * View updates should be triggered via setCover(type, id) to
- * instruct the view to load the cover from its own LRU cache.
+ * instruct the view to load the cover from the shared in-memory cover cache.
  * 
  * The cover will automatically  be fetched & scaled in a background
  * thread on cache miss
@@ -60,10 +58,6 @@ public class LazyCoverView extends ImageView
 	 * The fallback cover image resource encoded as bitmap
 	 */
 	private static Bitmap sFallbackBitmap;
-	/**
-	 * Our private LRU cache
-	 */
-	private static BitmapLruCache sBitmapLruCache;
 	/**
 	 * The cover key we are expected to draw
 	 */
@@ -98,12 +92,7 @@ public class LazyCoverView extends ImageView
 	public LazyCoverView(Context context, AttributeSet attributes) {
 		super(context, attributes);
 		mContext = context;
-		if (sBitmapLruCache == null) {
-			ActivityManager am = (ActivityManager)context.getSystemService(context.ACTIVITY_SERVICE);
-			int lruSize = am.getMemoryClass() / 10; // use ~10% for LRU
-			lruSize = lruSize < 2 ? 2 : lruSize; // LRU will always be at least 2MiB
-			sBitmapLruCache = new BitmapLruCache(lruSize*1024*1024);
-		}
+		CoverCache.initMemoryCache(context);
 		if (sFallbackBitmap == null) {
 			sFallbackBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.fallback_cover);
 		}
@@ -134,7 +123,7 @@ public class LazyCoverView extends ImageView
 		switch (message.what) {
 			case MSG_CREATE_COVER: {
 				// This message was sent due to a cache miss, but the cover might got cached in the meantime
-				Bitmap bitmap = sBitmapLruCache.get(payload.key);
+				Bitmap bitmap = CoverCache.getCachedCover(payload.key);
 				if (bitmap == null) {
 				    // modified by zollty 10 lines
 //					if (payload.key.mediaType == MediaUtils.TYPE_ALBUM) {
@@ -155,7 +144,7 @@ public class LazyCoverView extends ImageView
 					Log.v("VanillaMusic", "CREATE_COVER: " + payload.title);
 				}
 				// bitmap is non null: store in LRU cache and draw it
-				sBitmapLruCache.put(payload.key, bitmap);
+				CoverCache.putCachedCover(payload.key, bitmap);
 				sUiHandler.sendMessage(sUiHandler.obtainMessage(MSG_DRAW_COVER, payload));
 				break;
 			}
@@ -193,7 +182,7 @@ public class LazyCoverView extends ImageView
 	 */
 	public boolean drawFromCache(CoverCache.CoverKey key, boolean fadeIn) {
 		boolean cacheHit = true;
-		Bitmap bitmap = sBitmapLruCache.get(key);
+		Bitmap bitmap = CoverCache.getCachedCover(key);
 		if (bitmap == null) {
 			cacheHit = false;
 		}
@@ -212,30 +201,4 @@ public class LazyCoverView extends ImageView
 		return cacheHit;
 	}
 
-	/**
-	* A LRU cache implementation, using the CoverKey as key to store Bitmap objects
-	*
-	* Note that the implementation does not override create() in order to enable
-	* the use of fetch-if-cached functions: createBitmap() is therefore called
-	* by CoverCache itself.
-	*/
-	private static class BitmapLruCache extends LruCache<CoverCache.CoverKey, Bitmap> {
-		/**
-		 * Creates a new in-memory LRU cache
-		 *
-		 * @param size the lru cache size in bytes
-		 */
-		public BitmapLruCache(int size) {
-			super(size);
-		}
-
-		/**
-		 * Returns the cache size in bytes, not objects
-		 */
-		@Override
-		protected int sizeOf(CoverCache.CoverKey key, Bitmap value) {
-			return value.getByteCount();
-		}
-	}
-
 }
@@ -23,6 +23,7 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.LibraryObserver;
 import ch.blinkenlights.android.medialibrary.MediaLibrary;
 import ch.blinkenlights.android.vanilla.ui.FancyMenu;
 import ch.blinkenlights.android.vanilla.ui.FancyMenuItem;
@@ -151,6 +152,15 @@ public class LibraryActivity
 	 * The adapter for the currently visible list.
 	 */
 	private LibraryAdapter mCurrentAdapter;
+	/**
+	 * Forwards changes of the media library to mPagerAdapter
+	 */
+	private final LibraryObserver mLibraryObserver = new LibraryObserver() {
+		@Override
+		public void onChange(LibraryObserver.Type type, long id, boolean ongoing) {
+			mPagerAdapter.invalidateData(type, ongoing);
+		}
+	};
 
 
 	@Override
@@ -170,6 +180,7 @@ public class LibraryActivity
 
 		LibraryPagerAdapter pagerAdapter = new LibraryPagerAdapter(this, mLooper);
 		mPagerAdapter = pagerAdapter;
+		MediaLibrary.registerLibraryObserver(mLibraryObserver);
 
 		ViewPager pager = (ViewPager)findViewById(R.id.pager);
 		pager.setAdapter(pagerAdapter);
@@ -203,6 +214,13 @@ public class LibraryActivity
 		}
 	}
 
+	@Override
+	public void onDestroy()
+	{
+		MediaLibrary.unregisterLibraryObserver(mLibraryObserver);
+		super.onDestroy();
+	}
+
 	@Override
 	public void onStart()
 	{
@@ -967,13 +985,6 @@ public class LibraryActivity
 		return true;
 	}
 
-	@Override
-	public void onMediaChange()
-	{
-		if (mPagerAdapter != null)
-			mPagerAdapter.invalidateData();
-	}
-
 	@Override
 	protected void onStateChange(int state, int toggled)
 	{
@@ -23,6 +23,7 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.LibraryObserver;
 import ch.blinkenlights.android.vanilla.ext.CoordClickListener;
 
 import android.content.Intent;
@@ -60,6 +61,11 @@ public class LibraryPagerAdapter
 	 * smaller.
 	 */
 	public static final int MAX_ADAPTER_COUNT = MediaUtils.TYPE_COUNT;
+	/**
+	 * How long to collect change notifications of an ongoing scan before
+	 * requerying the affected adapters, in ms.
+	 */
+	private static final int INVALIDATE_COALESCE_DELAY = 2000;
 	/**
 	 * The human-readable title for each list. The positions correspond to the
 	 * MediaUtils ids, so e.g. TITLES[MediaUtils.TYPE_SONG] = R.string.songs
@@ -98,6 +104,12 @@ public class LibraryPagerAdapter
 	 * Whether the adapter corresponding to each index has stale data.
 	 */
 	private final boolean[] mRequeryNeeded = new boolean[MAX_ADAPTER_COUNT];
+	/**
+	 * Bitmask of adapter types waiting for an invalidation posted by
+	 * {@link #invalidateData(LibraryObserver.Type, boolean)}.
+	 * Only accessed while holding the lock of this object.
+	 */
+	private int mPendingInvalidation;
 	/**
 	 * The artist adapter instance, also stored at mAdapters[MediaUtils.TYPE_ARTIST].
 	 */
@@ -676,6 +688,12 @@ public class LibraryPagerAdapter
 	 * Runs on UI thread.
 	 */
 	private static final int MSG_COMMIT_QUERY = 3;
+	/**
+	 * Requery all adapters flagged in mPendingInvalidation.
+	 *
+	 * Runs on UI thread.
+	 */
+	private static final int MSG_INVALIDATE_DATA = 4;
 
 	@Override
 	public boolean handleMessage(Message message)
@@ -704,6 +722,18 @@ public class LibraryPagerAdapter
 		case MSG_REQUEST_REQUERY:
 			requestRequery((LibraryAdapter)message.obj);
 			break;
+		case MSG_INVALIDATE_DATA: {
+			int mask;
+			synchronized (this) {
+				mask = mPendingInvalidation;
+				mPendingInvalidation = 0;
+			}
+			for (LibraryAdapter adapter : mAdapters) {
+				if (adapter != null && (mask & (1 << adapter.getMediaType())) != 0)
+					requestRequery(adapter);
+			}
+			break;
+		}
 		default:
 			return false;
 		}
@@ -769,14 +799,46 @@ public class LibraryPagerAdapter
 	}
 
 	/**
-	 * Invalidate the data for all adapters.
+	 * Invalidate the data of all adapters affected by a change in the media
+	 * library. Song changes affect all library tabs except the playlists,
+	 * which get their own notifications. The file tab does not show library
+	 * data and is never invalidated.
+	 *
+	 * Notifications of an ongoing scan are coalesced: the adapters get
+	 * requeried once after INVALIDATE_COALESCE_DELAY instead of on each
+	 * notification. The final notification is handled immediately.
+	 *
+	 * May be called from any thread.
+	 *
+	 * @param type the type of the change, as passed to the LibraryObserver
+	 * @param ongoing whether or not more changes are to be expected soon
 	 */
-	public void invalidateData()
+	public void invalidateData(LibraryObserver.Type type, boolean ongoing)
 	{
-		for (LibraryAdapter adapter : mAdapters) {
-			if (adapter != null) {
-				postRequestRequery(adapter);
-			}
+		int mask;
+		switch (type) {
+		case SONG:
+			mask = ~((1 << MediaUtils.TYPE_PLAYLIST) | (1 << MediaUtils.TYPE_FILE));
+			break;
+		case PLAYLIST:
+			mask = 1 << MediaUtils.TYPE_PLAYLIST;
+			break;
+		default:
+			return;
+		}
+
+		boolean scheduled;
+		synchronized (this) {
+			scheduled = mPendingInvalidation != 0;
+			mPendingInvalidation |= mask;
+		}
+
+		Handler handler = mUiHandler;
+		if (!ongoing) {
+			handler.removeMessages(MSG_INVALIDATE_DATA);
+			handler.sendEmptyMessage(MSG_INVALIDATE_DATA);
+		} else if (!scheduled) {
+			handler.sendEmptyMessageDelayed(MSG_INVALIDATE_DATA, INVALIDATE_COALESCE_DELAY);
 		}
 	}
 
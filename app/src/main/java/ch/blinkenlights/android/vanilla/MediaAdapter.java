@@ -28,6 +28,7 @@ import ch.blinkenlights.android.medialibrary.MediaLibrary;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.DatabaseUtils;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
@@ -41,7 +42,8 @@ import android.widget.SectionIndexer;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.ArrayList;
 import java.lang.StringBuilder;
@@ -69,6 +71,20 @@ public class MediaAdapter
 	 * The string to use for length==0 db fields
 	 */
 	private static final String DB_NULLSTRING_FALLBACK = "?";
+	/**
+	 * Number of section indexes to keep in mSectionsCache
+	 */
+	private static final int SECTIONS_CACHE_SIZE = 8;
+	/**
+	 * Selects the ids of all songs matching the search index, the MATCH
+	 * expression is bound to the placeholder.
+	 */
+	private static final String SEARCH_SUBQUERY = "SELECT "+MediaLibrary.SearchColumns.DOCID+" FROM "+MediaLibrary.TABLE_SEARCH
+	                                              +" WHERE "+MediaLibrary.TABLE_SEARCH+" MATCH ?";
+	/**
+	 * Selection for songs matching the search index.
+	 */
+	private static final String SEARCH_SONG_SELECTION = MediaLibrary.SongColumns._ID+" IN ("+SEARCH_SUBQUERY+")";
 	/**
 	 * A context to use.
 	 */
@@ -106,6 +122,16 @@ public class MediaAdapter
 	 * used to speed up sorting and filtering.
 	 */
 	private String[] mFieldKeys;
+	/**
+	 * Selection to filter mSource by a MATCH against the search index,
+	 * null if this type is not covered by the index. The MATCH expression
+	 * is passed as the only selection argument.
+	 */
+	private String mSearchSelection;
+	/**
+	 * The search index columns to match, null to match all columns.
+	 */
+	private String[] mSearchColumns;
 	/**
 	 * The columns to query from the content provider.
 	 */
@@ -135,9 +161,19 @@ public class MediaAdapter
 	 */
 	private int mCoverCacheType;
 	/**
-	 * Alphabet to be used for {@link SectionIndexer}. Populated in {@link #buildAlphabet()}.
+	 * Sections to be used for {@link SectionIndexer}, built by {@link #buildSections(Cursor, String)}.
 	 */
-	private List<SectionIndex> mAlphabet = new ArrayList<>(512);
+	private Sections mSections = Sections.EMPTY;
+	/**
+	 * Recently built sections, keyed by the query they were built for.
+	 * Only accessed while holding its lock.
+	 */
+	private final LinkedHashMap<String, Sections> mSectionsCache = new LinkedHashMap<String, Sections>(8, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Sections> eldest) {
+			return size() > SECTIONS_CACHE_SIZE;
+		}
+	};
 
 	/**
 	 * Construct a MediaAdapter representing the given <code>type</code> of
@@ -175,6 +211,8 @@ public class MediaAdapter
 			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.ARTIST_SORT };
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
+			mSearchSelection = buildContributorSearchSelection(MediaLibrary.ROLE_ARTIST);
+			mSearchColumns = new String[] { MediaLibrary.SearchColumns.ARTIST };
 			break;
 		case MediaUtils.TYPE_ALBARTIST:
 			mSource = MediaLibrary.VIEW_ALBUMARTISTS;
@@ -182,6 +220,8 @@ public class MediaAdapter
 			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SORT };
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.ALBUMARTIST_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
+			mSearchSelection = buildContributorSearchSelection(MediaLibrary.ROLE_ALBUMARTIST);
+			mSearchColumns = new String[] { MediaLibrary.SearchColumns.ALBUMARTIST };
 			break;
 		case MediaUtils.TYPE_COMPOSER:
 			mSource = MediaLibrary.VIEW_COMPOSERS;
@@ -189,6 +229,8 @@ public class MediaAdapter
 			mFieldKeys = new String[] { MediaLibrary.ContributorColumns.COMPOSER_SORT };
 			mSortEntries = new int[] { R.string.title, R.string.date_added };
 			mAdapterSortValues = new String[] { MediaLibrary.ContributorColumns.COMPOSER_SORT+" %1$s", MediaLibrary.ContributorColumns.MTIME+" %1$s" };
+			mSearchSelection = buildContributorSearchSelection(MediaLibrary.ROLE_COMPOSER);
+			mSearchColumns = new String[] { MediaLibrary.SearchColumns.COMPOSER };
 			break;
 		case MediaUtils.TYPE_ALBUM:
 			mSource = MediaLibrary.VIEW_ALBUMS_ARTISTS;
@@ -199,6 +241,9 @@ public class MediaAdapter
 												MediaLibrary.ContributorColumns.ARTIST_SORT+" %1$s,"+MediaLibrary.AlbumColumns.ALBUM_SORT+" %1$s",
 			                                    MediaLibrary.AlbumColumns.PRIMARY_ALBUM_YEAR+" %1$s", MediaLibrary.AlbumColumns.MTIME+" %1$s",
 												MediaLibrary.SongColumns.DURATION+" %1$s" };
+			mSearchSelection = MediaLibrary.AlbumColumns._ID+" IN (SELECT "+MediaLibrary.SongColumns.ALBUM_ID+" FROM "+MediaLibrary.TABLE_SONGS
+			                   +" WHERE "+MediaLibrary.SongColumns._ID+" IN ("+SEARCH_SUBQUERY+"))";
+			mSearchColumns = new String[] { MediaLibrary.SearchColumns.ALBUM, MediaLibrary.SearchColumns.ARTIST };
 			break;
 		case MediaUtils.TYPE_SONG:
 			mSource = MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS;
@@ -219,6 +264,7 @@ public class MediaAdapter
 			// Songs covers are cached per-album
 			mCoverCacheType = MediaUtils.TYPE_ALBUM;
 			coverCacheKey = MediaStore.Audio.Albums.ALBUM_ID;
+			mSearchSelection = SEARCH_SONG_SELECTION;
 			break;
 		case MediaUtils.TYPE_PLAYLIST:
 			mSource = MediaLibrary.VIEW_PLAYLISTS;
@@ -251,6 +297,15 @@ public class MediaAdapter
 		}
 	}
 
+	/**
+	 * Returns the selection to filter contributors with the given role by
+	 * a MATCH against the search index.
+	 */
+	private static String buildContributorSearchSelection(int role) {
+		return MediaLibrary.ContributorColumns._ID+" IN (SELECT "+MediaLibrary.ContributorSongColumns._CONTRIBUTOR_ID+" FROM "+MediaLibrary.TABLE_CONTRIBUTORS_SONGS
+		       +" WHERE "+MediaLibrary.ContributorSongColumns.ROLE+"="+role+" AND "+MediaLibrary.ContributorSongColumns.SONG_ID+" IN ("+SEARCH_SUBQUERY+"))";
+	}
+
 	/**
 	 * Returns first sort column for this adapter. Ensure {@link #mSortMode} is correctly set
 	 * prior to calling this.
@@ -321,7 +376,15 @@ public class MediaAdapter
 		String sort = String.format(sortRaw, sortDir);
 
 		// include the constraint (aka: search string) if any
-		if (constraint != null && constraint.length() != 0) {
+		if (constraint != null && constraint.length() != 0 && mSearchSelection != null) {
+			// Types covered by the search index: songs always match on their own
+			// entry, so the song query does not need to go through mSource.
+			String match = MediaLibrary.buildSearchMatch(constraint, mSearchColumns);
+			if (match != null) {
+				selection.append(returnSongs ? SEARCH_SONG_SELECTION : mSearchSelection);
+				selectionArgs = new String[] { match };
+			}
+		} else if (constraint != null && constraint.length() != 0) {
 			String colKey = MediaLibrary.keyFor(constraint);
 			String spaceColKey = DatabaseUtils.getCollationKey(" ");
 			String[] needles = colKey.split(spaceColKey);
@@ -371,10 +434,34 @@ public class MediaAdapter
 		return query;
 	}
 
+	/**
+	 * Runs the query of this adapter and builds the section index of
+	 * the result, so that the UI thread does not need to walk the cursor.
+	 */
 	@Override
 	public Cursor query()
 	{
-		return buildQuery(mProjection, false).runQuery(mContext);
+		QueryTask query = buildQuery(mProjection, false);
+		String sortColumn = getFirstSortColumn();
+		long changeCount = MediaLibrary.getChangeCount();
+
+		Cursor cursor = query.runQuery(mContext);
+		if (cursor == null)
+			return null;
+
+		// Same query on unchanged data: the sections are still valid.
+		String key = changeCount+"\n"+sortColumn+"\n"+query.table+"\n"+query.selection+"\n"+Arrays.toString(query.selectionArgs)+"\n"+query.sortOrder;
+		Sections sections;
+		synchronized (mSectionsCache) {
+			sections = mSectionsCache.get(key);
+		}
+		if (sections == null || sections.count != cursor.getCount()) {
+			sections = buildSections(cursor, sortColumn);
+			synchronized (mSectionsCache) {
+				mSectionsCache.put(key, sections);
+			}
+		}
+		return new IndexedCursor(cursor, sections);
 	}
 
 	@Override
@@ -473,7 +560,11 @@ public class MediaAdapter
 	{
 		Cursor old = mCursor;
 		mCursor = cursor;
-		buildAlphabet();
+		if (cursor instanceof IndexedCursor) {
+			mSections = ((IndexedCursor)cursor).sections;
+		} else {
+			mSections = buildSections(cursor, getFirstSortColumn());
+		}
 		if (cursor == null) {
 			notifyDataSetInvalidated();
 		} else {
@@ -661,62 +752,84 @@ public class MediaAdapter
 	}
 
 	/**
-	 * Helper class for building an alphabet.
-	 * Contains a hint that is shown in fast scroll thumb popup and a position where this hint
-	 * has appeared first.
+	 * Section index for the fast scroller: the hints shown in the fast scroll
+	 * thumb popup and the positions where each hint has appeared first.
 	 */
-	private class SectionIndex
+	private static class Sections
 	{
-
-		public SectionIndex(Object hint, int position) {
-			this.hint = hint;
-			this.position = position;
+		static final Sections EMPTY = new Sections(new Object[0], new int[0], 0);
+
+		/**
+		 * The hints, in order of appearance
+		 */
+		final Object[] hints;
+		/**
+		 * The first position of each hint, ascending
+		 */
+		final int[] positions;
+		/**
+		 * The number of rows in the cursor these sections were built from
+		 */
+		final int count;
+
+		Sections(Object[] hints, int[] positions, int count) {
+			this.hints = hints;
+			this.positions = positions;
+			this.count = count;
 		}
+	}
 
-		private Object hint;
-		private int position;
+	/**
+	 * A cursor carrying the sections built for it in {@link #query()}.
+	 */
+	private static class IndexedCursor extends CursorWrapper
+	{
+		final Sections sections;
 
-		@Override
-		public String toString() {
-			return String.valueOf(hint);
+		IndexedCursor(Cursor cursor, Sections sections) {
+			super(cursor);
+			this.sections = sections;
 		}
 	}
 
 	/**
-	 * Build alphabet for fast-scroller. Detects automatically whether we're sorting
+	 * Build sections for the fast-scroller. Detects automatically whether we're sorting
 	 * on string-type (e.g. title or album) or integer type (e.g. year).
 	 *
-	 * <p/>Alphabet building is only performed if applicable, i.e. magic playcount sort
+	 * <p/>Sections are only built if applicable, i.e. magic playcount sort
 	 * or sort by date added will yield no results as the section hints would not be
 	 * human-readable.
 	 *
-	 * <p/>Note: This clears alphabet in case current cursor is invalid.
+	 * @param cursor the cursor to index, may be null
+	 * @param columnName the column the cursor is sorted by
+	 * @return the sections, empty if the cursor is invalid
 	 */
-	private void buildAlphabet()
+	private static Sections buildSections(Cursor cursor, String columnName)
 	{
-		mAlphabet.clear();
-
-		Cursor cursor = mCursor;
 		if(cursor == null || cursor.getCount() == 0) {
-			return;
+			return Sections.EMPTY;
 		}
 
-		String columnName = getFirstSortColumn();
 		int sortColumnIndex = cursor.getColumnIndex(columnName);
 		if(sortColumnIndex <= 0) {
 			// either projection doesn't contain this column
 			// or the column is _id (e.g. sort by date added),
 			// no point in building
-			return;
+			return new Sections(new Object[0], new int[0], cursor.getCount());
 		}
 
-		cursor.moveToFirst();
-
+		ArrayList<Object> hints = new ArrayList<>(64);
+		int[] positions = new int[64];
+		boolean isMtime = columnName.equals(MediaLibrary.SongColumns.MTIME);
+		boolean isDuration = columnName.equals(MediaLibrary.SongColumns.DURATION);
 		SimpleDateFormat dfmt = new SimpleDateFormat("yyyy-MM-dd");
-		String lastString = null;
 		Object lastKnown = null;
 		Object next;
-		do {
+		boolean lastWasInt = false;
+		int lastInt = 0;
+
+		cursor.moveToPosition(-1);
+		while (cursor.moveToNext()) {
 			int type = cursor.getType(sortColumnIndex);
 			switch (type) {
 				case Cursor.FIELD_TYPE_NULL:
@@ -724,73 +837,95 @@ public class MediaAdapter
 					break;
 				case Cursor.FIELD_TYPE_INTEGER:
 					int value = cursor.getInt(sortColumnIndex);
-					if (columnName.equals(MediaLibrary.SongColumns.MTIME)) {
+					if (lastWasInt && value == lastInt)
+						continue; // same value always yields the same hint
+					lastInt = value;
+					if (isMtime) {
 						next = dfmt.format(new Date(value * 1000L));
-					} else if (columnName.equals(MediaLibrary.SongColumns.DURATION)) {
+					} else if (isDuration) {
 						next = DateUtils.formatElapsedTime(value / 1000);
 					} else {
 						next = value;
 					}
 					break;
 				case Cursor.FIELD_TYPE_STRING:
-					lastString = cursor.getString(sortColumnIndex);
-					lastString = lastString.trim().toUpperCase(); // normalize
-
-					// This is what AOSP's MediaStore.java:1337 does during indexing
-					if (lastString.startsWith("THE "))
-						lastString = lastString.substring(4);
-
-					if (lastString.startsWith("AN "))
-						lastString = lastString.substring(3);
-
-					if (lastString.startsWith("A "))
-						lastString = lastString.substring(2);
-
-					// Ensure that we got at least one char
-					if (lastString.length() < 1)
-						lastString = DB_NULLSTRING_FALLBACK;
-
-					next = lastString.charAt(0);
+					next = getSectionChar(cursor.getString(sortColumnIndex));
 					break;
 				default:
 					continue;
 			}
-			if (!next.equals(lastKnown)) { // new char
-				mAlphabet.add(new SectionIndex(next, cursor.getPosition()));
+			lastWasInt = (type == Cursor.FIELD_TYPE_INTEGER);
+			if (!next.equals(lastKnown)) { // new section
+				if (hints.size() == positions.length)
+					positions = Arrays.copyOf(positions, positions.length * 2);
+				positions[hints.size()] = cursor.getPosition();
+				hints.add(next.toString());
 				lastKnown = next;
 			}
-		} while (cursor.moveToNext());
+		}
+		return new Sections(hints.toArray(), Arrays.copyOf(positions, hints.size()), cursor.getCount());
+	}
+
+	/**
+	 * Returns the section hint for given string: its first character after
+	 * stripping leading articles, without allocating a normalized copy.
+	 */
+	private static Character getSectionChar(String str)
+	{
+		int start = 0;
+		int end = str.length();
+		while (start < end && str.charAt(start) <= ' ')
+			start++;
+		while (end > start && str.charAt(end - 1) <= ' ')
+			end--;
+
+		// This is what AOSP's MediaStore.java:1337 does during indexing.
+		// The checks must not look past `end', as the trimmed string
+		// "A" does not start with "A ".
+		if (end - start >= 4 && str.regionMatches(true, start, "THE ", 0, 4))
+			start += 4;
+		if (end - start >= 3 && str.regionMatches(true, start, "AN ", 0, 3))
+			start += 3;
+		if (end - start >= 2 && str.regionMatches(true, start, "A ", 0, 2))
+			start += 2;
+
+		// Ensure that we got at least one char
+		if (start >= end)
+			return DB_NULLSTRING_FALLBACK.charAt(0);
+
+		return Character.toUpperCase(str.charAt(start));
 	}
 
 	@Override
 	public Object[] getSections()
 	{
-		return mAlphabet.toArray(new SectionIndex[mAlphabet.size()]);
+		return mSections.hints;
 	}
 
 	@Override
 	public int getPositionForSection(int sectionIndex)
 	{
+		int[] positions = mSections.positions;
+
 		// clip to start
 		if(sectionIndex < 0) {
 			return 0;
 		}
 
 		// clip to end
-		if(sectionIndex >= mAlphabet.size()) {
+		if(sectionIndex >= positions.length) {
 			return mCursor.getCount() - 1;
 		}
 
-		return mAlphabet.get(sectionIndex).position;
+		return positions[sectionIndex];
 	}
 
 	@Override
 	public int getSectionForPosition(int position)
 	{
-		for(int i = 0; i < mAlphabet.size(); ++i) {
-			if(mAlphabet.get(i).position > position)
-				return i - 1;
-		}
-		return 0;
+		int index = Arrays.binarySearch(mSections.positions, position);
+		if (index < 0)
+			index = -index - 2; // the section starting before this position
+		return index < 0 ? 0 : index;
 	}
 }
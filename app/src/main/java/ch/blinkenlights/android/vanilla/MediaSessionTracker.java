@@ -133,7 +133,7 @@ public class MediaSessionTracker {
 
 			boolean showCover = SharedPrefHelper.getSettings(mContext).getBoolean(PrefKeys.COVER_ON_LOCKSCREEN, PrefDefaults.COVER_ON_LOCKSCREEN);
 			if (showCover) {
-				final Bitmap cover = song.getMediumCover(mContext);
+				final Bitmap cover = NowPlayingArtwork.getMediumCover(mContext, song);
 				metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, cover);
 			}
 
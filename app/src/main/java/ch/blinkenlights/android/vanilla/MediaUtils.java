@@ -124,13 +124,22 @@ public class MediaUtils {
 	private static Random sRandom;
 
 	/**
-	 * Shuffled list of all songs in the library.
+	 * Shuffled ids of all songs in the library, consumed by getRandomSongs().
+	 * Null if not loaded.
 	 */
-	private static ArrayList<Song> sAllSongs = new ArrayList<Song>();
+	private static long[] sRandomIds;
 	/**
-	 * True if sAllSongs was shuffled by album.
+	 * Album ids of the songs in sRandomIds, only set if shuffled by album.
 	 */
-	private static boolean sAllSongsAS;
+	private static long[] sRandomAlbumIds;
+	/**
+	 * Index of the next song in sRandomIds to hand out.
+	 */
+	private static int sRandomPos;
+	/**
+	 * True if sRandomIds was shuffled by album.
+	 */
+	private static boolean sRandomAS;
 
 	/**
 	 * Total number of songs in the music library, or -1 for uninitialized.
@@ -329,26 +338,75 @@ public class MediaUtils {
 	}
 
 	/**
-	 * Returns a list containing all the songs found on the
-	 * device's library.
+	 * Loads the ids of all songs found on the device's library into
+	 * sRandomIds and shuffles them. Songs are never populated here: this
+	 * keeps memory usage low even for huge libraries.
 	 *
 	 * @param context The Context to use
+	 * @param albumShuffle If true, preserve the order of songs inside albums.
 	 */
-	private static ArrayList<Song> getAllSongs(Context context) {
-		QueryTask query = new QueryTask(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, Song.FILLED_PROJECTION, null, null, null);
+	private static void loadRandomIds(Context context, boolean albumShuffle) {
+		String[] projection = { MediaLibrary.SongColumns._ID, MediaLibrary.SongColumns.ALBUM_ID };
+		// Same order as Song.compareTo(), which keeps album tracks in order.
+		String sort = albumShuffle ? MediaLibrary.SongColumns.ALBUM_ID+","+MediaLibrary.SongColumns.DISC_NUMBER+","+MediaLibrary.SongColumns.SONG_NUMBER : null;
+		QueryTask query = new QueryTask(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, projection, null, null, sort);
 		Cursor cursor = query.runQuery(context);
-		ArrayList<Song> list = new ArrayList<Song>();
 
-		if (cursor == null)
-			return list;
+		long[] ids = new long[cursor == null ? 0 : cursor.getCount()];
+		long[] albumIds = new long[ids.length];
+		if (cursor != null) {
+			for (int i = 0; i != ids.length && cursor.moveToNext(); i++) {
+				ids[i] = cursor.getLong(0);
+				albumIds[i] = cursor.getLong(1);
+			}
+			cursor.close();
+		}
+
+		Random random = getRandom();
+		if (albumShuffle) {
+			// Shuffle the order of the albums, each album being a run
+			// of consecutive entries in the sorted arrays.
+			int[] runs = new int[ids.length];
+			int count = 0;
+			for (int i = 0; i != ids.length; i++) {
+				if (i == 0 || albumIds[i] != albumIds[i - 1])
+					runs[count++] = i;
+			}
+			for (int i = count - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int tmp = runs[i];
+				runs[i] = runs[j];
+				runs[j] = tmp;
+			}
 
-		while (cursor.moveToNext()) {
-			Song song = new Song(-1);
-			song.populate(cursor);
-			list.add(song);
+			long[] shuffledIds = new long[ids.length];
+			long[] shuffledAlbumIds = new long[ids.length];
+			int pos = 0;
+			for (int r = 0; r != count; r++) {
+				int i = runs[r];
+				do {
+					shuffledIds[pos] = ids[i];
+					shuffledAlbumIds[pos] = albumIds[i];
+					pos++;
+					i++;
+				} while (i != ids.length && albumIds[i] == albumIds[i - 1]);
+			}
+			ids = shuffledIds;
+			albumIds = shuffledAlbumIds;
+		} else {
+			for (int i = ids.length - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				long tmp = ids[i];
+				ids[i] = ids[j];
+				ids[j] = tmp;
+			}
+			albumIds = null;
 		}
-		cursor.close();
-		return list;
+
+		sRandomIds = ids;
+		sRandomAlbumIds = albumIds;
+		sRandomPos = 0;
+		sRandomAS = albumShuffle;
 	}
 
 	/**
@@ -358,7 +416,7 @@ public class MediaUtils {
 	public static void onMediaChange()
 	{
 		sSongCount = -1;
-		sAllSongs.clear();
+		sRandomIds = null;
 	}
 
 	/**
@@ -421,39 +479,60 @@ public class MediaUtils {
 	 * @param albumShuffle Whether or not we should shuffle by album
 	 */
 	public static List<Song> getRandomSongs(Context context, boolean albumShuffle) {
-		ArrayList<Song> songs = sAllSongs;
-
-		if (songs.size() == 0 || sAllSongsAS != albumShuffle) {
-			sAllSongs = getAllSongs(context);
-			sAllSongsAS = albumShuffle;
-			shuffle(sAllSongs, albumShuffle);
-			songs = sAllSongs;
+		if (sRandomIds == null || sRandomPos >= sRandomIds.length || sRandomAS != albumShuffle) {
+			loadRandomIds(context, albumShuffle);
 			// We don't need it but know the value, we can fill the cache for free.
-			sSongCount = songs.size();
+			sSongCount = sRandomIds.length;
 		}
 
 		final List<Song> results = new ArrayList<>();
+		final long[] ids = sRandomIds;
 
-		if (songs.size() > 0) {
+		// Songs may have vanished since the ids were loaded: skip them.
+		while (results.size() == 0 && sRandomPos < ids.length) {
+			// if we're in album shuffle mode, we'll want to add in the entire album in one go,
+			// so pick all upcoming songs having the same album id as the first one
+			int start = sRandomPos;
+			int end = start + 1;
+			if (albumShuffle) {
+				while (end < ids.length && sRandomAlbumIds[end] == sRandomAlbumIds[start])
+					end++;
+			}
+			sRandomPos = end;
 
-			long firstAlbumId = songs.get(0).albumId;
+			StringBuilder selection = new StringBuilder(MediaLibrary.SongColumns._ID+" IN (");
+			for (int i = start; i != end; i++) {
+				if (i != start)
+					selection.append(',');
+				selection.append(ids[i]);
+			}
+			selection.append(')');
 
-			// if we're in album shuffle mode, we'll want to add in the entire album in one go,
-			// so loop through the upcoming songs and add all those that have the same album id
-			// as the song we initially got
-			boolean addMore;
-			do {
-				final Song song = songs.remove(0);
+			QueryTask query = new QueryTask(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, Song.FILLED_PROJECTION, selection.toString(), null, null);
+			Cursor cursor = query.runQuery(context);
+			if (cursor == null)
+				continue;
+
+			HashMap<Long, Song> found = new HashMap<>();
+			while (cursor.moveToNext()) {
+				Song song = new Song(-1);
+				song.populate(cursor);
+				found.put(song.id, song);
+			}
+			cursor.close();
+
+			for (int i = start; i != end; i++) {
+				Song song = found.remove(ids[i]);
+				if (song == null)
+					continue;
 
 				// when in album shuffle mode, we don't want to flag any of the added songs
 				// as random, since manually enqueuing or changing random mode will remove every album track.
 				if (!albumShuffle) {
 					song.flags |= Song.FLAG_RANDOM;
 				}
-
 				results.add(song);
-				addMore = albumShuffle && songs.size() > 0 && songs.get(0).albumId == firstAlbumId;
-			} while (addMore);
+			}
 		}
 
 		return results;
@@ -480,7 +559,7 @@ public class MediaUtils {
 	* This is an ugly hack: The tries to 'guess' if given path
 	* is also accessible using a fuse mount
 	*/
-	private static String sanitizeMediaPath(String path) {
+	static String sanitizeMediaPath(String path) {
 
 		String exPath  = Environment.getExternalStorageDirectory().getAbsolutePath();
 		File exStorage = new File(exPath+"/Android");
@@ -523,7 +602,7 @@ public class MediaUtils {
 	 *
 	 * @param path The path, e.g. /mnt/sdcard/music/
 	 * @param projection The columns to query
-	 * @param recursive whether or not to do a LIKE search, picking up child items.
+	 * @param recursive whether or not to do a prefix search, picking up child items.
 	 * @return The initialized query.
 	 */
 	public static QueryTask buildFileQuery(String path, String[] projection, boolean recursive)
@@ -531,15 +610,22 @@ public class MediaUtils {
 		// Try to detect more popular mount point:
 		path = sanitizeMediaPath(path);
 		String query = MediaLibrary.SongColumns.PATH+" = ?";
+		String[] args = new String[]{ path };
 
 		if (recursive) {
-			// This is a LIKE query: add a slash to the directory if the current path
+			// This is a prefix search: add a slash to the directory if the current path
 			// points to an existing one.
-			path = addDirEndSlash(path) + "%";
-			query = MediaLibrary.SongColumns.PATH+" LIKE ?";
+			String prefix = addDirEndSlash(path);
+			if (prefix.length() > 0) {
+				query = MediaLibrary.SongColumns.PATH+" >= ? AND "+MediaLibrary.SongColumns.PATH+" < ?";
+				args = MediaLibrary.getPathPrefixRange(prefix);
+			} else {
+				query = null;
+				args = null;
+			}
 		}
 
-		QueryTask result = new QueryTask(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, projection, query, new String[]{ path }, FILE_SORT);
+		QueryTask result = new QueryTask(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, projection, query, args, FILE_SORT);
 		result.type = TYPE_FILE;
 		return result;
 	}
@@ -584,7 +670,7 @@ public class MediaUtils {
 				songId = -2; // must be less than -1 (-1 defines an empty song object)
 
 			// Build minimal fake-database entry for this file
-			Object[] objData = new Object[] { songId, path, "", "", "", 0, 0, 0, 0, 0, 0 };
+			Object[] objData = new Object[] { songId, path, "", "", "", 0, 0, 0, 0, 0, 0, 0, 0, null, 0, 0 };
 
 			if (title != null)
 				objData[2] = title;
@@ -625,13 +711,23 @@ public class MediaUtils {
 	}
 
 	/**
-	 * Returns the id's used by Androids native media database for given song
+	 * Returns the id's used by Androids native media database for given song.
+	 * The ids of library songs are cached by the media library, so the native
+	 * database only gets queried if a song was never seen before.
 	 *
 	 * @param context the context to use
 	 * @param song the song to query
 	 * @return long { song_id, album_id, artist_id } - all set to -1 on error
 	 */
 	public static long[] getAndroidMediaIds(Context context, Song song) {
+		// Songs which are not part of our library have negative ids.
+		final boolean cacheable = song.id > 0;
+		if (cacheable) {
+			long[] cached = MediaLibrary.getNativeIds(context, song.id);
+			if (cached != null)
+				return cached;
+		}
+
 		long[] result = { -1, -1, -1 };
 		String[] projection = new String[]{ MediaStore.Audio.Media._ID, MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.ARTIST_ID };
 		try {
@@ -642,6 +738,8 @@ public class MediaUtils {
 						result[i] = cursor.getLong(i);
 				}
 				cursor.close();
+				if (cacheable)
+					MediaLibrary.setNativeIds(context, song.id, result);
 			}
 		} catch (SecurityException e) {
 			Log.e("VanillaMusic", "Wowies: No permission to read EXTERNAL_CONTENT_URI for song "+song.path+": "+e);
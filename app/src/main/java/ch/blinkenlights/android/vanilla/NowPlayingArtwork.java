@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.vanilla;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Artwork of the current and upcoming songs, shared by the notification,
+ * the media session and the widgets.
+ *
+ * Each cover is resolved and decoded once per song and size: all consumers
+ * get the same bitmap, which must therefore never be modified or recycled.
+ * The covers of the next song can be prepared in the background, so that
+ * they are ready once the song starts playing.
+ */
+public class NowPlayingArtwork {
+	/**
+	 * Number of songs to keep the artwork of: the previous, current
+	 * and next song.
+	 */
+	private static final int MAX_ENTRIES = 3;
+	/**
+	 * The artwork of the most recently used songs, keyed by song id
+	 */
+	private static final LinkedHashMap<Long, Entry> sEntries = new LinkedHashMap<Long, Entry>(MAX_ENTRIES + 1, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	/**
+	 * True once the large cover was requested: it is only prepared
+	 * in advance if someone actually uses it.
+	 */
+	private static volatile boolean sLargeUsed;
+	/**
+	 * Handler of the thread used to prepare artwork, created on first use
+	 */
+	private static Handler sHandler;
+
+	/**
+	 * The artwork of a single song
+	 */
+	private static class Entry {
+		/**
+		 * The path of the song, the id alone is only a hash of it
+		 */
+		final String path;
+		/**
+		 * The medium sized cover, null if none was found
+		 */
+		Bitmap medium;
+		/**
+		 * The large cover, null if none was found
+		 */
+		Bitmap large;
+		/**
+		 * True if medium was looked up
+		 */
+		boolean hasMedium;
+		/**
+		 * True if large was looked up
+		 */
+		boolean hasLarge;
+
+		Entry(String path) {
+			this.path = path;
+		}
+	}
+
+	/**
+	 * Returns the medium sized cover of given song, as used by the
+	 * notification, the media session and most widgets.
+	 *
+	 * @param context A context to use.
+	 * @param song The song to return the cover of.
+	 * @return The shared cover or null if the song has no cover.
+	 */
+	public static Bitmap getMediumCover(Context context, Song song) {
+		return getCover(context, song, false);
+	}
+
+	/**
+	 * Returns the large cover of given song.
+	 *
+	 * @param context A context to use.
+	 * @param song The song to return the cover of.
+	 * @return The shared cover or null if the song has no cover.
+	 */
+	public static Bitmap getLargeCover(Context context, Song song) {
+		sLargeUsed = true;
+		return getCover(context, song, true);
+	}
+
+	/**
+	 * Loads the covers of given song in the background, so that
+	 * later calls to getMediumCover() and getLargeCover() return
+	 * without hitting the cover cache.
+	 *
+	 * @param context A context to use.
+	 * @param song The song to prepare, usually the next one.
+	 */
+	public static void prepare(Context context, final Song song) {
+		final Context appContext = context.getApplicationContext();
+		getHandler().post(new Runnable() {
+			@Override
+			public void run() {
+				getMediumCover(appContext, song);
+				if (sLargeUsed)
+					getLargeCover(appContext, song);
+			}
+		});
+	}
+
+	/**
+	 * Drops all artwork, must be called whenever the covers
+	 * of songs may have changed.
+	 */
+	public static void invalidate() {
+		synchronized (sEntries) {
+			sEntries.clear();
+		}
+	}
+
+	/**
+	 * Returns a cover of given song, decoding it if needed.
+	 * The lock is not held while decoding: callers asking for
+	 * other songs must not wait for it.
+	 *
+	 * @param large True to return the large cover, false for the medium one.
+	 */
+	private static Bitmap getCover(Context context, Song song, boolean large) {
+		Entry entry;
+		synchronized (sEntries) {
+			entry = getEntry(song);
+			if (large ? entry.hasLarge : entry.hasMedium)
+				return large ? entry.large : entry.medium;
+		}
+
+		Bitmap cover = large ? song.getLargeCover(context) : song.getMediumCover(context);
+
+		synchronized (sEntries) {
+			// Someone else might have been faster: keep their cover, so
+			// that all consumers share the same bitmap. An entry dropped by
+			// invalidate() in the meantime is not reachable anymore.
+			if (large) {
+				if (!entry.hasLarge) {
+					entry.large = cover;
+					entry.hasLarge = true;
+				}
+				return entry.large;
+			} else {
+				if (!entry.hasMedium) {
+					entry.medium = cover;
+					entry.hasMedium = true;
+				}
+				return entry.medium;
+			}
+		}
+	}
+
+	/**
+	 * Returns the entry of given song, creating it if needed.
+	 * Must be called with sEntries locked.
+	 */
+	private static Entry getEntry(Song song) {
+		Entry entry = sEntries.get(song.id);
+		if (entry == null || !entry.path.equals(song.path)) {
+			entry = new Entry(song.path);
+			sEntries.put(song.id, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the handler of our background thread, starting it if needed
+	 */
+	private static synchronized Handler getHandler() {
+		if (sHandler == null) {
+			HandlerThread thread = new HandlerThread("NowPlayingArtwork", Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			sHandler = new Handler(thread.getLooper());
+		}
+		return sHandler;
+	}
+}
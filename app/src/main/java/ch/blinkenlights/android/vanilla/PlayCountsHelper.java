@@ -20,8 +20,6 @@ package ch.blinkenlights.android.vanilla;
 import ch.blinkenlights.android.medialibrary.MediaLibrary;
 
 import android.content.Context;
-import android.database.Cursor;
-import java.util.ArrayList;
 
 public class PlayCountsHelper {
 
@@ -39,17 +37,14 @@ public class PlayCountsHelper {
 
 
 	/**
-	 * Returns a sorted array list of most often listen song ids
+	 * Returns the ids of the most often played songs
+	 *
+	 * @param context the context to use
+	 * @param limit the maximum number of songs to return
+	 * @return the song ids, most played first
 	 */
-	public static ArrayList<Long> getTopSongs(Context context, int limit) {
-		ArrayList<Long> payload = new ArrayList<Long>();
-		Cursor cursor = MediaLibrary.queryLibrary(context, MediaLibrary.TABLE_SONGS, new String[]{ MediaLibrary.SongColumns._ID }, MediaLibrary.SongColumns.PLAYCOUNT+" > 0", null, MediaLibrary.SongColumns.PLAYCOUNT+" DESC");
-		while (cursor.moveToNext() && limit > 0) {
-			payload.add(cursor.getLong(0));
-			limit--;
-		}
-		cursor.close();
-		return payload;
+	public static long[] getTopSongs(Context context, int limit) {
+		return MediaLibrary.getTopSongs(context, limit);
 	}
 
 }
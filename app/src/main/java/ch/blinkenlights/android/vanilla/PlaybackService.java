@@ -23,6 +23,7 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.GainValues;
 import ch.blinkenlights.android.medialibrary.MediaLibrary;
 import ch.blinkenlights.android.medialibrary.LibraryObserver;
 
@@ -60,6 +61,8 @@ import android.util.Log;
 import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
 import java.lang.Math;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -93,7 +96,19 @@ public final class PlaybackService extends Service
 	/**
 	 * State file version that indicates data order.
 	 */
-	private static final int STATE_VERSION = 6;
+	private static final int STATE_VERSION = 7;
+	/**
+	 * Last state file version without a journal. Still accepted by loadState().
+	 */
+	private static final int STATE_VERSION_NO_JOURNAL = 6;
+	/**
+	 * Size of the header of each journal frame: pending seek and song id.
+	 */
+	private static final int STATE_FRAME_HEADER_SIZE = 12;
+	/**
+	 * Rewrite the state file once the journal grew beyond this many bytes.
+	 */
+	private static final int STATE_JOURNAL_MAX_SIZE = 256 * 1024;
 
 	private static final int NOTIFICATION_ID = 2;
 	private static final String NOTIFICATION_CHANNEL = "Playback";
@@ -372,6 +387,19 @@ public final class PlaybackService extends Service
 	 * an invalid song. Value is undefined when mPendingSeek is 0.
 	 */
 	private long mPendingSeekSong;
+	/**
+	 * Lock held while serializing the state.
+	 */
+	private final Object mSaveStateLock = new Object();
+	/**
+	 * Crash-safe storage of our state, written in the background.
+	 */
+	private StateFile mStateFile;
+	/**
+	 * Id of the current state file. Journal frames are only valid
+	 * for the state file having the same id.
+	 */
+	private long mStateJournalId;
 	public Receiver mReceiver;
 	private String mErrorMessage;
 	/**
@@ -640,6 +668,11 @@ public final class PlaybackService extends Service
 
 		// defer wakelock and close audioFX
 		enterSleepState();
+		// give the background writer a chance to persist our state
+		if (mStateFile != null) {
+			mStateFile.flush(2000);
+			mStateFile.close();
+		}
 
 		// stop getting preference changes.
 		SharedPrefHelper.getSettings(this).unregisterOnSharedPreferenceChangeListener(this);
@@ -704,8 +737,14 @@ public final class PlaybackService extends Service
 	// 1.mPreparedMediaPlayer处于非播放状态：即要么播放器刚初始化，要么歌曲切换（上一首歌停止播放）。
 	public void prepareMediaPlayer(VanillaMediaPlayer mp, Song song) throws IOException{
 		mp.setDataSource(song.path);
+		mp.setGainValues(song.gain);
 		mp.prepare();
 		applyReplayGain(mp);
+		if (song.gain == null && song.id > 0 && mp.getGainValues() != null) {
+			// Not inspected by the scanner yet: keep what we just read from the file.
+			song.gain = mp.getGainValues();
+			MediaLibrary.setSongGainValues(this, song.id, song.gain);
+		}
 		//Log.e("VanillaMusic", "prepareMediaPlayer, id="+song.id+", path="+song.path+", mPendingSeek="+mPendingSeek);
 	}
 
@@ -764,7 +803,7 @@ public final class PlaybackService extends Service
 			return;
 		}
 
-		BastpUtil.GainValues rg = getReplayGainValues(mp.getDataSource());
+		GainValues rg = getReplayGainValues(mp);
 		float adjust = 0f;
 
 		if (mReplayGainAlbumEnabled) {
@@ -797,11 +836,27 @@ public final class PlaybackService extends Service
 	}
 
 	/**
-	 * Returns the (hopefully cached) replaygain
-	 * values of given file
+	 * Returns the replaygain values of given song. Uses the values
+	 * stored in the media library and only parses the file if the
+	 * song was not inspected by the scanner.
 	 */
-	public BastpUtil.GainValues getReplayGainValues(String path) {
-		return mBastpUtil.getReplayGainValues(path);
+	public GainValues getReplayGainValues(Song song) {
+		if (song.gain != null)
+			return song.gain;
+		return mBastpUtil.getReplayGainValues(song.path);
+	}
+
+	/**
+	 * Returns the replaygain values of the data source of given
+	 * media player.
+	 */
+	private GainValues getReplayGainValues(VanillaMediaPlayer mp) {
+		GainValues rg = mp.getGainValues();
+		if (rg == null) {
+			rg = mBastpUtil.getReplayGainValues(mp.getDataSource());
+			mp.setGainValues(rg);
+		}
+		return rg;
 	}
 
 	/**
@@ -838,6 +893,10 @@ public final class PlaybackService extends Service
 		int fa = finishAction(mState);
 		Song nextSong = getSong(1);
 
+		// Decode the artwork of the next song now, so that it is ready once the song starts.
+		if (nextSong != null)
+			NowPlayingArtwork.prepare(this, nextSong);
+
 		if( nextSong != null
 		 && fa != SongTimeline.FINISH_REPEAT_CURRENT
 		 && fa != SongTimeline.FINISH_STOP_CURRENT
@@ -876,7 +935,7 @@ public final class PlaybackService extends Service
 	}
 
 	private int getSeekStart(VanillaMediaPlayer mp) {
-		BastpUtil.GainValues rg = getReplayGainValues(mp.getDataSource());
+		GainValues rg = getReplayGainValues(mp);
 		int start = 0;
 		if (playTimeStartPercent > 1) {
 			start = mp.getDuration() * playTimeStartPercent / 100;
@@ -887,7 +946,7 @@ public final class PlaybackService extends Service
 
 	private void startPlayTimeout() {
 		mHandler.removeMessages(MSG_SEEK_TIMEOUT);
-		BastpUtil.GainValues rg = getReplayGainValues(mMediaPlayer.getDataSource());
+		GainValues rg = getReplayGainValues(mMediaPlayer);
 		int start = 0;
 		if (playTimeStartPercent > 1) {
 			start = mMediaPlayer.getDuration() * playTimeStartPercent / 100;
@@ -1755,7 +1814,10 @@ public final class PlaybackService extends Service
 				// Add an invisible whitespace to adjust our sorting
 				String playlistName = getString(R.string.autoplaylist_playcounts_name, mAutoPlPlaycounts);
 				long id = Playlist.createPlaylist(context, playlistName);
-				ArrayList<Long> items = PlayCountsHelper.getTopSongs(context, mAutoPlPlaycounts);
+				long[] top = PlayCountsHelper.getTopSongs(context, mAutoPlPlaycounts);
+				ArrayList<Long> items = new ArrayList<Long>(top.length);
+				for (long songId : top)
+					items.add(songId);
 				Playlist.addToPlaylist(context, id, items);
 			}
 			break;
@@ -2156,13 +2218,28 @@ public final class PlaybackService extends Service
 	{
 		int state = 0;
 
+		if (mStateFile == null)
+			mStateFile = new StateFile(getFilesDir(), STATE_FILE);
+
+		byte[] data = mStateFile.readSnapshot();
+		boolean verified = data != null;
+		if (!verified)
+			data = mStateFile.readUnverifiedSnapshot();
+		if (data == null)
+			return state;
+
 		try {
-			DataInputStream in = new DataInputStream(openFileInput(STATE_FILE));
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
 
-			if (in.readLong() == STATE_FILE_MAGIC && in.readInt() == STATE_VERSION) {
+			int version = in.readLong() == STATE_FILE_MAGIC ? in.readInt() : -1;
+			// Files without checksum can only come from old versions.
+			if (verified ? version == STATE_VERSION : version == STATE_VERSION_NO_JOURNAL) {
+				long journalId = version == STATE_VERSION_NO_JOURNAL ? 0 : in.readLong();
 				mPendingSeek = in.readInt();
 				mPendingSeekSong = in.readLong();
-				mTimeline.readState(in);
+				DataInputStream journal = version == STATE_VERSION ? readStateJournal(journalId) : null;
+				mTimeline.readState(in, journal);
+				mStateJournalId = journalId;
 				state |= mTimeline.getShuffleMode() << SHIFT_SHUFFLE;
 				state |= mTimeline.getFinishAction() << SHIFT_FINISH;
 			}
@@ -2177,25 +2254,80 @@ public final class PlaybackService extends Service
 		return state;
 	}
 
+	/**
+	 * Reads all intact frames of the journal belonging to the state file
+	 * with the given id. The pending seek position is updated from each
+	 * frame.
+	 *
+	 * @param journalId The id of the state file.
+	 * @return The timeline changes of all frames, to be passed to
+	 * SongTimeline.readState().
+	 */
+	private DataInputStream readStateJournal(long journalId) throws IOException
+	{
+		ByteArrayOutputStream changes = new ByteArrayOutputStream();
+
+		for (byte[] frame : mStateFile.readJournal(journalId)) {
+			if (frame.length < STATE_FRAME_HEADER_SIZE)
+				break;
+			DataInputStream header = new DataInputStream(new ByteArrayInputStream(frame));
+			mPendingSeek = header.readInt();
+			mPendingSeekSong = header.readLong();
+			changes.write(frame, STATE_FRAME_HEADER_SIZE, frame.length - STATE_FRAME_HEADER_SIZE);
+		}
+
+		return new DataInputStream(new ByteArrayInputStream(changes.toByteArray()));
+	}
+
 	/**
 	 * Save the service state to disk.
 	 *
+	 * Changes are appended to the journal, which is cheap even for
+	 * huge timelines. The state file is only written from scratch if the
+	 * journal grew too large, or if it cannot be trusted anymore.
+	 *
+	 * The state is serialized into a buffer by the calling thread, the
+	 * actual IO is done in the background by mStateFile.
+	 *
 	 * @param pendingSeek The pendingSeek to store. Should be the current
 	 * MediaPlayer position or 0.
 	 */
 	public void saveState(int pendingSeek)
 	{
-		try {
-			DataOutputStream out = new DataOutputStream(openFileOutput(STATE_FILE, 0));
-			Song song = mCurrentSong;
-			out.writeLong(STATE_FILE_MAGIC);
-			out.writeInt(STATE_VERSION);
-			out.writeInt(pendingSeek);
-			out.writeLong(song == null ? -1 : song.id);
-			mTimeline.writeState(out);
-			out.close();
-		} catch (IOException e) {
-			Log.w("VanillaMusic", "Failed to save state", e);
+		Song song = mCurrentSong;
+		long songId = song == null ? -1 : song.id;
+
+		synchronized (mSaveStateLock) {
+			if (mStateFile == null)
+				mStateFile = new StateFile(getFilesDir(), STATE_FILE);
+
+			try {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(buffer);
+
+				out.writeInt(pendingSeek);
+				out.writeLong(songId);
+				if (mTimeline.writeJournal(out)) {
+					out.flush();
+					if (mStateFile.tryAppendJournal(buffer.toByteArray(), STATE_JOURNAL_MAX_SIZE))
+						return;
+				}
+				buffer.reset();
+
+				// Write a new state file and start an empty journal for it.
+				long journalId = mStateJournalId + 1;
+				out.writeLong(STATE_FILE_MAGIC);
+				out.writeInt(STATE_VERSION);
+				out.writeLong(journalId);
+				out.writeInt(pendingSeek);
+				out.writeLong(songId);
+				mTimeline.writeState(out);
+				out.flush();
+				mStateFile.writeSnapshot(buffer.toByteArray(), journalId);
+				mStateJournalId = journalId;
+			} catch (IOException e) {
+				Log.w("VanillaMusic", "Failed to save state", e);
+			}
 		}
 	}
 
@@ -2264,7 +2396,7 @@ public final class PlaybackService extends Service
 	public Notification createNotification(Song song, int state, int mode)
 	{
 		final boolean playing = (state & FLAG_PLAYING) != 0;
-		Bitmap cover = song.getMediumCover(this);
+		Bitmap cover = NowPlayingArtwork.getMediumCover(this, song);
 		if (cover == null) {
 			cover = BitmapFactory.decodeResource(getResources(), R.drawable.fallback_cover_large);
 		}
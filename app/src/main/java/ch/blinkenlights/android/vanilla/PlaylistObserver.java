@@ -36,11 +36,14 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
 
 import android.util.Log;
 
@@ -68,6 +71,10 @@ public class PlaylistObserver extends SQLiteOpenHelper implements Handler.Callba
 	 * Line comment prefix for M3U files
 	 */
 	private static final String M3U_LINE_COMMENT_PREFIX = "#";
+	/**
+	 * Number of M3U entries to resolve with a single query
+	 */
+	private static final int IMPORT_CHUNK_SIZE = 500;
 	/**
 	 * Context to use.
 	 */
@@ -310,11 +317,8 @@ public class PlaylistObserver extends SQLiteOpenHelper implements Handler.Callba
 		if (!m3u.exists())
 			return;
 
-		final long hash = getHash(m3u);
-		if (hash == -1)
-			return;
-
 		boolean must_import = true;
+		long hash = -1;
 		String import_as = fromM3u(m3u.getName());
 		Cursor cursor = queryDatabase(null);
 		if (cursor != null) {
@@ -325,8 +329,9 @@ public class PlaylistObserver extends SQLiteOpenHelper implements Handler.Callba
 				if (m3u.equals(tmp)) {
 					// Found a matching playlist: this will be our import target
 					// if the hash indicates that our version is outdated.
+					hash = getHash(m3u);
 					import_as = cursor.getString(1);
-					must_import = (hash != cursor.getLong(2));
+					must_import = (hash != -1 && hash != cursor.getLong(2));
 					XT("importM3uPlaylist(): hash="+hash+", import="+must_import+", import_as="+import_as);
 					break;
 				}
@@ -337,26 +342,77 @@ public class PlaylistObserver extends SQLiteOpenHelper implements Handler.Callba
 		if (must_import) {
 			MediaLibrary.unregisterLibraryObserver(mLibraryObserver);
 			long import_id = Playlist.createPlaylist(mContext, import_as);
-			try (BufferedReader br = new BufferedReader(new FileReader(m3u))) {
+			// The hash is calculated while reading if we did not need it to decide.
+			CheckedInputStream in = null;
+			try {
+				in = new CheckedInputStream(new FileInputStream(m3u), new CRC32());
+				BufferedReader br = new BufferedReader(new InputStreamReader(in));
+				ArrayList<Long> ids = new ArrayList<>();
+				ArrayList<String> paths = new ArrayList<>(IMPORT_CHUNK_SIZE);
 				String line;
 				while ((line = br.readLine()) != null) {
 					if (!(line.isEmpty() || line.startsWith(M3U_LINE_COMMENT_PREFIX))) {
 						// Handle relative paths and Windows directory separators.
 						final String mediaPath = FileUtils.resolve(mPlaylists,
 							new File(FileUtils.normalizeDirectorySeparators(line)));
-						Playlist.addToPlaylist(mContext,
-							import_id,
-							MediaUtils.buildFileQuery(mediaPath, Song.FILLED_PROJECTION,  false /* recursive */));
+						paths.add(MediaUtils.sanitizeMediaPath(mediaPath));
+						if (paths.size() == IMPORT_CHUNK_SIZE) {
+							resolveSongIds(paths, ids);
+							paths.clear();
+						}
 					}
 				}
+				resolveSongIds(paths, ids);
+
+				if (hash == -1)
+					hash = toHash(in.getChecksum());
+				Playlist.addToPlaylist(mContext, import_id, ids);
 				updatePlaylistMetadata(import_id, import_as, hash);
 			} catch(IOException e) {
 				Log.e("VanillaMusic", "Error while parsing m3u: "+e);
+			} finally {
+				try {
+					if (in != null)
+						in.close();
+				} catch (IOException e) {
+					// ignored
+				}
 			}
 			MediaLibrary.registerLibraryObserver(mLibraryObserver);
 		}
 	}
 
+	/**
+	 * Looks up the song ids of a chunk of paths with a single query
+	 *
+	 * @param paths the paths to look up, at most IMPORT_CHUNK_SIZE entries
+	 * @param ids receives the ids of all paths found in the library, in order of `paths'
+	 */
+	private void resolveSongIds(ArrayList<String> paths, ArrayList<Long> ids) {
+		if (paths.isEmpty())
+			return;
+
+		StringBuilder selection = new StringBuilder(MediaLibrary.SongColumns.PATH+" IN (?");
+		for (int i = 1; i < paths.size(); i++) {
+			selection.append(",?");
+		}
+		selection.append(')');
+
+		HashMap<String, Long> found = new HashMap<>();
+		String[] projection = { MediaLibrary.SongColumns._ID, MediaLibrary.SongColumns.PATH };
+		Cursor cursor = MediaLibrary.queryLibrary(mContext, MediaLibrary.TABLE_SONGS, projection, selection.toString(), paths.toArray(new String[0]), null);
+		while (cursor.moveToNext()) {
+			found.put(cursor.getString(1), cursor.getLong(0));
+		}
+		cursor.close();
+
+		for (String path : paths) {
+			Long id = found.get(path);
+			if (id != null)
+				ids.add(id);
+		}
+	}
+
 	/**
 	 * Exports a single playlist ad M3U(8).
 	 *
@@ -552,21 +608,33 @@ public class PlaylistObserver extends SQLiteOpenHelper implements Handler.Callba
 	 */
 	private long getHash(File f) {
 		long hash = -1;
-		byte[] buff = new byte[4096];
+		byte[] buff = new byte[16384];
 		try(FileInputStream fis = new FileInputStream(f)) {
 			CRC32 crc = new CRC32();
-			while(fis.read(buff) != -1) {
-				crc.update(buff);
+			int len;
+			while((len = fis.read(buff)) != -1) {
+				crc.update(buff, 0, len);
 			}
-			hash = crc.getValue();
-			if (hash < 0)
-				hash = hash * -1;
+			hash = toHash(crc);
 		} catch(IOException e) {
 			// hash will be -1 which signals failure.
 		}
 		return hash;
 	}
 
+	/**
+	 * Returns the hash value stored for given checksum
+	 *
+	 * @param crc the checksum of the file
+	 * @return the non-negative hash
+	 */
+	private long toHash(Checksum crc) {
+		long hash = crc.getValue();
+		if (hash < 0)
+			hash = hash * -1;
+		return hash;
+	}
+
 	/**
 	 * Obtain a cursor to our metadaata database.
 	 *
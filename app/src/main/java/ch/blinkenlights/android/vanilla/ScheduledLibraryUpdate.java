@@ -99,7 +99,7 @@ public class ScheduledLibraryUpdate extends JobService {
 
 		mJobParams = params;
 		MediaLibrary.registerLibraryObserver(mObserver);
-		MediaLibrary.startLibraryScan(this, fullScan, false);
+		MediaLibrary.startLibraryScan(this, fullScan, false, true);
 
 		return true;
 	}
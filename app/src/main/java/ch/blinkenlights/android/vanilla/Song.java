@@ -23,6 +23,7 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.GainValues;
 import ch.blinkenlights.android.medialibrary.MediaLibrary;
 
 import android.content.Context;
@@ -66,6 +67,11 @@ public class Song implements Comparable<Song> {
 		MediaLibrary.SongColumns.SONG_NUMBER,
 		MediaLibrary.SongColumns.DISC_NUMBER,
 		MediaLibrary.SongColumns.FLAGS,
+		MediaLibrary.SongColumns.REPLAYGAIN_TRACK,
+		MediaLibrary.SongColumns.REPLAYGAIN_ALBUM,
+		MediaLibrary.SongColumns.REPLAYGAIN_FOUND,
+		MediaLibrary.SongColumns.SEEK_START,
+		MediaLibrary.SongColumns.SEEK_END,
 	};
 
 	public static final String[] EMPTY_PLAYLIST_PROJECTION = {
@@ -84,6 +90,11 @@ public class Song implements Comparable<Song> {
 		MediaLibrary.SongColumns.SONG_NUMBER,
 		MediaLibrary.SongColumns.DISC_NUMBER,
 		MediaLibrary.SongColumns.FLAGS,
+		MediaLibrary.SongColumns.REPLAYGAIN_TRACK,
+		MediaLibrary.SongColumns.REPLAYGAIN_ALBUM,
+		MediaLibrary.SongColumns.REPLAYGAIN_FOUND,
+		MediaLibrary.SongColumns.SEEK_START,
+		MediaLibrary.SongColumns.SEEK_END,
 	};
 
 	/**
@@ -140,6 +151,12 @@ public class Song implements Comparable<Song> {
 	 */
 	public int flags;
 
+	/**
+	 * ReplayGain and seek window as stored in the media library, null
+	 * if the library has no gain information for this song.
+	 */
+	public GainValues gain;
+
 	/**
 	 * Initialize the song with the specified id. Call populate to fill fields
 	 * in the song.
@@ -201,6 +218,17 @@ public class Song implements Comparable<Song> {
 			// have the flag set for other reasons.
 			flags |= FLAG_NO_COVER;
 		}
+
+		// Gain information is NULL for songs which were not (yet) inspected
+		// by the scanner: callers must read it from the file in this case.
+		if (!cursor.isNull(13)) {
+			gain = new GainValues();
+			gain.track = cursor.getFloat(11);
+			gain.album = cursor.getFloat(12);
+			gain.found = cursor.getInt(13) != 0;
+			gain.seekStart = cursor.getInt(14);
+			gain.seekEnd = cursor.getInt(15);
+		}
 	}
 
 	/**
@@ -229,6 +257,8 @@ public class Song implements Comparable<Song> {
 
 	/**
 	 * Query the large album art for this song.
+	 * The bitmap is shared through the cover cache and must not be
+	 * modified or recycled.
 	 *
 	 * @param context A context to use.
 	 * @return The album art or null if no album art could be found
@@ -239,6 +269,8 @@ public class Song implements Comparable<Song> {
 
 	/**
 	 * Query the medium album art for this song.
+	 * The bitmap is shared through the cover cache and must not be
+	 * modified or recycled.
 	 *
 	 * @param context A context to use.
 	 * @return The album art or null if no album art could be found
@@ -29,13 +29,13 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.MediaStore;
+import android.util.Log;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 
@@ -212,6 +212,24 @@ public final class SongTimeline {
 	 */
 	public static final int SHIFT_NEXT_ALBUM = 2;
 
+	/**
+	 * Maximum number of ids to look up with a single query
+	 * while restoring the timeline.
+	 */
+	private static final int RESTORE_CHUNK_SIZE = 500;
+	/**
+	 * Journal entry replacing a range of songs.
+	 *
+	 * @see SongTimeline#writeJournal(DataOutputStream)
+	 */
+	private static final int JOURNAL_OP_REPLACE = 1;
+	/**
+	 * Journal entry updating the position, finish action and shuffle mode.
+	 *
+	 * @see SongTimeline#writeJournal(DataOutputStream)
+	 */
+	private static final int JOURNAL_OP_STATE = 2;
+
 	private final Context mContext;
 	/**
 	 * All the songs currently contained in the timeline. Each Song object
@@ -251,6 +269,17 @@ public final class SongTimeline {
 	private int mSavedPos;
 	private int mSavedSize;
 
+	// for writeJournal(): the timeline is described relative to the last
+	// saved state by the number of songs which did not change at its start
+	// and end, everything in between gets written.
+	private int mJournalSize = -1; // -1: no saved state to base the journal on
+	private boolean mJournalDirty;
+	private int mJournalHead;
+	private int mJournalTail;
+	private int mJournalPos;
+	private int mJournalFinishAction;
+	private int mJournalShuffleMode;
+
 	/**
 	 * Interface to respond to timeline changes.
 	 */
@@ -286,32 +315,6 @@ public final class SongTimeline {
 		mContext = context;
 	}
 
-	/**
-	 * Compares the ids of songs.
-	 */
-	public static class IdComparator implements Comparator<Song> {
-		@Override
-		public int compare(Song a, Song b)
-		{
-			if (a.id == b.id)
-				return 0;
-			if (a.id > b.id)
-				return 1;
-			return -1;
-		}
-	}
-
-	/**
-	 * Compares the flags of songs.
-	 */
-	public static class FlagComparator implements Comparator<Song> {
-		@Override
-		public int compare(Song a, Song b)
-		{
-			return a.flags - b.flags;
-		}
-	}
-
 	/**
 	 * Initializes the timeline with data read from the stream. Data should have
 	 * been saved by a call to {@link SongTimeline#writeState(DataOutputStream)}.
@@ -320,75 +323,78 @@ public final class SongTimeline {
 	 */
 	public void readState(DataInputStream in) throws IOException
 	{
-		synchronized (this) {
-			int n = in.readInt();
-			if (n > 0) {
-				ArrayList<Song> songs = new ArrayList<Song>(n);
-
-				// Fill the selection with the ids of all the saved songs
-				// and initialize the timeline with unpopulated songs.
-				StringBuilder selection = new StringBuilder(MediaLibrary.SongColumns._ID+" IN (");
-				for (int i = 0; i != n; ++i) {
-					long id = in.readLong();
-					if (id == -1)
-						continue;
-
-					// Add the index to the flags so we can sort
-					int flags = in.readInt() & ~(~0 << Song.FLAG_COUNT) | i << Song.FLAG_COUNT;
-					songs.add(new Song(id, flags));
-
-					if (i != 0)
-						selection.append(',');
-					selection.append(id);
-				}
-				selection.append(')');
-
-				// Sort songs by id---this is the order the query will
-				// return its results in.
-				Collections.sort(songs, new IdComparator());
-
-				QueryTask query = new QueryTask(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, Song.FILLED_PROJECTION, selection.toString(), null, MediaLibrary.SongColumns._ID);
-				Cursor cursor = query.runQuery(mContext);
-				if (cursor != null) {
-					if (cursor.getCount() != 0) {
-						cursor.moveToNext();
-
-						// Loop through timeline entries, looking for a row
-						// that matches the id. One row may match multiple
-						// entries.
-						Iterator<Song> it = songs.iterator();
-						while (it.hasNext()) {
-							Song e = it.next();
-							while (cursor.getLong(0) < e.id && !cursor.isLast())
-								cursor.moveToNext();
-							if (cursor.getLong(0) == e.id)
-								e.populate(cursor);
-						}
-					}
+		readState(in, null);
+	}
 
-					cursor.close();
+	/**
+	 * Initializes the timeline with data read from the stream and replays
+	 * the changes recorded in the journal afterwards.
+	 *
+	 * @param in The stream to read from, written by
+	 * {@link SongTimeline#writeState(DataOutputStream)}.
+	 * @param journal All data written by subsequent calls to
+	 * {@link SongTimeline#writeJournal(DataOutputStream)}, may be null.
+	 */
+	public void readState(DataInputStream in, DataInputStream journal) throws IOException
+	{
+		synchronized (this) {
+			mJournalSize = -1;
+			// Read all saved entries: null songs are kept as -1 for now,
+			// so that the positions used by the journal stay valid.
+			int count = Math.max(0, in.readInt());
+			long[] ids = new long[count];
+			int[] flags = new int[count];
+			for (int i = 0; i != count; ++i) {
+				ids[i] = in.readLong();
+				if (ids[i] != -1)
+					flags[i] = in.readInt() & ~(~0 << Song.FLAG_COUNT);
+			}
 
-					// The query may have returned zero results or we might
-					// have failed to populate some songs: Get rid of all
-					// uninitialized items
-					Iterator<Song> it = songs.iterator();
-					while (it.hasNext()) {
-						Song e = it.next();
-						if (e.isFilled() == false) {
-							it.remove();
+			int[] state = { Math.abs(in.readInt()), in.readInt(), in.readInt() };
+
+			if (journal != null) {
+				try {
+					while (journal.available() > 0) {
+						int op = journal.readByte();
+						if (op == JOURNAL_OP_STATE) {
+							state[0] = journal.readInt();
+							state[1] = journal.readInt();
+							state[2] = journal.readInt();
+						} else if (op == JOURNAL_OP_REPLACE) {
+							int start = journal.readInt();
+							int removed = journal.readInt();
+							int added = journal.readInt();
+							if (start < 0 || removed < 0 || added < 0 || start + removed > count)
+								throw new IOException("Invalid journal range: "+start+"+"+removed);
+
+							int size = count - removed + added;
+							if (size > ids.length) {
+								ids = Arrays.copyOf(ids, size);
+								flags = Arrays.copyOf(flags, size);
+							}
+							System.arraycopy(ids, start + removed, ids, start + added, count - start - removed);
+							System.arraycopy(flags, start + removed, flags, start + added, count - start - removed);
+							for (int i = start; i != start + added; ++i) {
+								ids[i] = journal.readLong();
+								flags[i] = ids[i] == -1 ? 0 : journal.readInt() & ~(~0 << Song.FLAG_COUNT);
+							}
+							count = size;
+						} else {
+							throw new IOException("Unknown journal op: "+op);
 						}
 					}
-
-					// Revert to the order the songs were saved in.
-					Collections.sort(songs, new FlagComparator());
-
-					mSongs = songs;
+				} catch (IOException e) {
+					// Keep everything replayed so far: this is the best we can get.
+					Log.w("VanillaMusic", "Failed to replay timeline journal", e);
 				}
 			}
 
-			mCurrentPos = Math.min(mSongs == null ? 0 : mSongs.size(), Math.abs(in.readInt()));
-			mFinishAction = in.readInt();
-			mShuffleMode = in.readInt();
+			if (count > 0)
+				restoreSongs(ids, flags, count);
+
+			mCurrentPos = Math.min(mSongs == null ? 0 : mSongs.size(), state[0]);
+			mFinishAction = state[1];
+			mShuffleMode = state[2];
 
 			// Guard against corruption
 			if (mFinishAction < 0 || mFinishAction >= FINISH_ICONS.length)
@@ -398,6 +404,101 @@ public final class SongTimeline {
 		}
 	}
 
+	/**
+	 * Replaces the timeline with the songs having the given ids.
+	 * Songs which cannot be found in the library are skipped.
+	 *
+	 * @param ids the ids of all songs, -1 for null songs
+	 * @param flags the flags of each song
+	 * @param count the number of valid entries in ids and flags
+	 */
+	private void restoreSongs(long[] ids, int[] flags, int count)
+	{
+		// Build an id -> positions index: `unique' holds the sorted
+		// distinct ids, the positions of unique[k] in the timeline are
+		// positions[start[k]] up to (excluding) positions[start[k+1]].
+		long[] unique = new long[count];
+		int distinct = 0;
+		for (int i = 0; i != count; ++i) {
+			if (ids[i] != -1)
+				unique[distinct++] = ids[i];
+		}
+		Arrays.sort(unique, 0, distinct);
+		int valid = distinct;
+		distinct = 0;
+		for (int i = 0; i != valid; ++i) {
+			if (distinct == 0 || unique[distinct - 1] != unique[i])
+				unique[distinct++] = unique[i];
+		}
+
+		int[] slots = new int[count];
+		int[] start = new int[distinct + 1];
+		for (int i = 0; i != count; ++i) {
+			slots[i] = ids[i] == -1 ? -1 : Arrays.binarySearch(unique, 0, distinct, ids[i]);
+			if (slots[i] >= 0)
+				start[slots[i] + 1]++;
+		}
+		for (int k = 0; k != distinct; ++k)
+			start[k + 1] += start[k];
+		int[] fill = Arrays.copyOf(start, distinct);
+		int[] positions = new int[valid];
+		for (int i = 0; i != count; ++i) {
+			if (slots[i] >= 0)
+				positions[fill[slots[i]]++] = i;
+		}
+
+		// Look up the songs in chunks, so that huge timelines
+		// do not end up in a single gigantic query.
+		Song[] entries = new Song[count];
+		boolean queried = false;
+		for (int offset = 0; offset < distinct; offset += RESTORE_CHUNK_SIZE) {
+			int end = Math.min(distinct, offset + RESTORE_CHUNK_SIZE);
+			StringBuilder selection = new StringBuilder(MediaLibrary.SongColumns._ID+" IN (");
+			for (int k = offset; k != end; ++k) {
+				if (k != offset)
+					selection.append(',');
+				selection.append(unique[k]);
+			}
+			selection.append(')');
+
+			QueryTask query = new QueryTask(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, Song.FILLED_PROJECTION, selection.toString(), null, null);
+			Cursor cursor = query.runQuery(mContext);
+			if (cursor == null)
+				continue;
+
+			queried = true;
+			while (cursor.moveToNext()) {
+				long id = cursor.getLong(0);
+				int k = Arrays.binarySearch(unique, offset, end, id);
+				if (k < 0)
+					continue;
+				// One row may match multiple entries, but each entry
+				// needs its own Song object.
+				for (int j = start[k]; j != start[k + 1]; ++j) {
+					int pos = positions[j];
+					if (entries[pos] == null) {
+						Song song = new Song(id, flags[pos]);
+						song.populate(cursor);
+						entries[pos] = song;
+					}
+				}
+			}
+			cursor.close();
+		}
+
+		if (queried) {
+			// The query may have returned zero results or we might
+			// have failed to populate some songs: Get rid of all
+			// uninitialized items
+			ArrayList<Song> songs = new ArrayList<Song>(count);
+			for (Song song : entries) {
+				if (song != null && song.isFilled())
+					songs.add(song);
+			}
+			mSongs = songs;
+		}
+	}
+
 	/**
 	 * Writes the current songs and state to the given stream.
 	 *
@@ -408,30 +509,136 @@ public final class SongTimeline {
 		// Must update PlaybackService.STATE_VERSION when changing behavior
 		// here.
 
-		ArrayList<Song> songs;
+		Song[] songs;
+		int pos;
+		int finishAction;
+		int shuffleMode;
 		synchronized (this) {
 			// Just grab a copy and release the lock soon:
 			// Performing the actual IO is pretty expensive and
 			// could stall UI elements accessing the timeline.
-			songs = new ArrayList(mSongs);
+			songs = mSongs.toArray(new Song[mSongs.size()]);
+			pos = mCurrentPos;
+			finishAction = mFinishAction;
+			shuffleMode = mShuffleMode;
+
+			// Journal entries written from now on are based on this state.
+			mJournalSize = songs.length;
+			mJournalDirty = false;
+			mJournalPos = pos;
+			mJournalFinishAction = finishAction;
+			mJournalShuffleMode = shuffleMode;
 		}
 
-		int size = songs.size();
+		int size = songs.length;
 		out.writeInt(size);
 
 		for (int i = 0; i != size; ++i) {
-			Song song = songs.get(i);
-			if (song == null) {
-				out.writeLong(-1);
+			writeSong(out, songs[i]);
+		}
+
+		out.writeInt(pos);
+		out.writeInt(finishAction);
+		out.writeInt(shuffleMode);
+	}
+
+	/**
+	 * Writes the changes done since the last call to writeState() or
+	 * writeJournal() to the given stream. Only the range of the timeline
+	 * which actually changed is written, so the output is usually tiny
+	 * even for huge timelines.
+	 *
+	 * @param out The stream to write to.
+	 * @return false if nothing was written because there is no state to base
+	 * the journal on: writeState() must be used in this case.
+	 */
+	public boolean writeJournal(DataOutputStream out) throws IOException
+	{
+		Song[] added;
+		int start;
+		int removed;
+		int pos;
+		int finishAction;
+		int shuffleMode;
+		boolean stateChanged;
+		synchronized (this) {
+			if (mJournalSize < 0)
+				return false;
+
+			if (mJournalDirty) {
+				int size = mSongs.size();
+				start = mJournalHead;
+				removed = mJournalSize - mJournalHead - mJournalTail;
+				added = mSongs.subList(start, size - mJournalTail).toArray(new Song[size - mJournalTail - start]);
+				mJournalSize = size;
+				mJournalDirty = false;
 			} else {
-				out.writeLong(song.id);
-				out.writeInt(song.flags);
+				start = 0;
+				removed = 0;
+				added = new Song[0];
+			}
+
+			pos = mCurrentPos;
+			finishAction = mFinishAction;
+			shuffleMode = mShuffleMode;
+			stateChanged = pos != mJournalPos || finishAction != mJournalFinishAction || shuffleMode != mJournalShuffleMode;
+			mJournalPos = pos;
+			mJournalFinishAction = finishAction;
+			mJournalShuffleMode = shuffleMode;
+		}
+
+		if (removed != 0 || added.length != 0) {
+			out.writeByte(JOURNAL_OP_REPLACE);
+			out.writeInt(start);
+			out.writeInt(removed);
+			out.writeInt(added.length);
+			for (Song song : added) {
+				writeSong(out, song);
 			}
 		}
 
-		out.writeInt(mCurrentPos);
-		out.writeInt(mFinishAction);
-		out.writeInt(mShuffleMode);
+		if (stateChanged) {
+			out.writeByte(JOURNAL_OP_STATE);
+			out.writeInt(pos);
+			out.writeInt(finishAction);
+			out.writeInt(shuffleMode);
+		}
+		return true;
+	}
+
+	/**
+	 * Records that songs at `index' were replaced by `added' songs, while
+	 * the songs following them did not change. writeJournal() then only
+	 * writes the changed range. Must be called with the timeline locked,
+	 * after mSongs was modified.
+	 */
+	private void journalReplace(int index, int added)
+	{
+		if (mJournalSize < 0)
+			return;
+
+		int tail = mSongs.size() - added - index;
+		if (mJournalDirty) {
+			mJournalHead = Math.min(mJournalHead, index);
+			mJournalTail = Math.min(mJournalTail, tail);
+		} else {
+			mJournalHead = index;
+			mJournalTail = tail;
+			mJournalDirty = true;
+		}
+	}
+
+	/**
+	 * Writes a single timeline entry as expected by readState()
+	 */
+	private static void writeSong(DataOutputStream out, Song song) throws IOException
+	{
+		if (song == null) {
+			out.writeLong(-1);
+		} else {
+			out.writeLong(song.id);
+			out.writeInt(song.flags);
+		}
 	}
 
 	/**
@@ -480,6 +687,7 @@ public final class SongTimeline {
 				ArrayList<Song> songs = getShuffledTimeline(false);
 				mCurrentPos = songs.indexOf(mSavedCurrent);
 				mSongs = songs;
+				journalReplace(0, songs.size());
 			}
 			broadcastChangedSongs();
 		}
@@ -504,6 +712,7 @@ public final class SongTimeline {
 					Song lastSong = mSongs.get(lastSongPos);
 					if (lastSong.isRandom() && lastSong.equals(mLastRandomSong)) {
 						mSongs.remove(lastSongPos);
+						journalReplace(lastSongPos, 0);
 					}
 				}
 				// forget about the last random song, even if it survived (eg: was switching modes while not playing
@@ -550,6 +759,7 @@ public final class SongTimeline {
 			int newPosition = songs.indexOf(mSavedCurrent);
 			Collections.swap(songs, newPosition, mCurrentPos);
 			mSongs = songs;
+			journalReplace(0, songs.size());
 			broadcastChangedSongs();
 		}
 		changed();
@@ -591,6 +801,7 @@ public final class SongTimeline {
 					for (Song newSong : songs) {
 						timeline.add(newSong);
 					}
+					journalReplace(size, songs.size());
 
 					song = songs.get(0);
 
@@ -634,6 +845,7 @@ public final class SongTimeline {
 		if (mFinishAction != FINISH_RANDOM && pos == mSongs.size()) {
 			if (mShuffleMode != SHUFFLE_NONE && !mSongs.isEmpty()) {
 				mSongs = getShuffledTimeline(true);
+				journalReplace(0, mSongs.size());
 			}
 
 			pos = 0;
@@ -782,18 +994,22 @@ public final class SongTimeline {
 				if (mFinishAction == FINISH_RANDOM) {
 					int j = timeline.size();
 					while (--j > mCurrentPos) {
-						if (timeline.get(j).isRandom())
+						if (timeline.get(j).isRandom()) {
 							timeline.remove(j);
+							journalReplace(j, 0);
+						}
 					}
 				}
 				break;
 			case MODE_FLUSH_AND_PLAY_NEXT:
 				timeline.subList(mCurrentPos + 1, timeline.size()).clear();
+				journalReplace(mCurrentPos + 1, 0);
 				break;
 			case MODE_PLAY:
 			case MODE_PLAY_POS_FIRST:
 			case MODE_PLAY_ID_FIRST:
 				timeline.clear();
+				journalReplace(0, 0);
 				mCurrentPos = 0;
 				break;
 			default:
@@ -852,6 +1068,7 @@ public final class SongTimeline {
 			}
 
 			cursor.close();
+			journalReplace(start, added);
 
 			if (mShuffleMode != SHUFFLE_NONE)
 				MediaUtils.shuffle(timeline.subList(start, start+added), mShuffleMode == SHUFFLE_ALBUMS);
@@ -862,6 +1079,7 @@ public final class SongTimeline {
 					// Get the sublist twice to avoid a ConcurrentModificationException.
 					timeline.addAll(timeline.subList(start, jumpPos));
 					timeline.subList(start, jumpPos).clear();
+					journalReplace(start, timeline.size() - start);
 				}
 			}
 
@@ -880,6 +1098,7 @@ public final class SongTimeline {
 		synchronized (this) {
 			while (mCurrentPos > len) {
 				mSongs.remove(0);
+				journalReplace(0, 0);
 				mCurrentPos--;
 			}
 		}
@@ -893,8 +1112,10 @@ public final class SongTimeline {
 	{
 		synchronized (this) {
 			saveActiveSongs();
-			if (mCurrentPos + 1 < mSongs.size())
+			if (mCurrentPos + 1 < mSongs.size()) {
 				mSongs.subList(mCurrentPos + 1, mSongs.size()).clear();
+				journalReplace(mCurrentPos + 1, 0);
+			}
 			broadcastChangedSongs();
 		}
 
@@ -909,6 +1130,7 @@ public final class SongTimeline {
 		synchronized (this) {
 			saveActiveSongs();
 			mSongs.clear();
+			journalReplace(0, 0);
 			mCurrentPos = 0;
 			broadcastChangedSongs();
 		}
@@ -973,6 +1195,7 @@ public final class SongTimeline {
 					if (i < mCurrentPos)
 						--mCurrentPos;
 					it.remove();
+					journalReplace(i, 0);
 				}
 			}
 
@@ -999,6 +1222,7 @@ public final class SongTimeline {
 			saveActiveSongs();
 
 			songs.remove(pos);
+			journalReplace(pos, 0);
 			if (pos < mCurrentPos)
 				mCurrentPos--;
 			if (getSong(1) == null) // wrap around if this was the last song
@@ -1025,6 +1249,7 @@ public final class SongTimeline {
 
 			Song tmp = songs.remove(from);
 			songs.add(to, tmp);
+			journalReplace(Math.min(from, to), Math.abs(from - to) + 1);
 
 			if (mCurrentPos == from) {
 				mCurrentPos = to; // active song was dragged to 'to'
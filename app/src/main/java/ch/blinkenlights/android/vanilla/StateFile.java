@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.vanilla;
+
+import android.os.Build;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe storage of a snapshot and a journal of changes made since
+ * the snapshot was written. Used to persist the PlaybackService state.
+ *
+ * Snapshots are written to a temporary file, synced and renamed into place,
+ * keeping the previous snapshot as a backup. Snapshots and journal frames
+ * carry a CRC32 checksum: corrupted data is ignored on load and the last good
+ * snapshot is used instead.
+ *
+ * All writes are done in order on a background thread: callers only need
+ * to serialize their data into a buffer.
+ */
+class StateFile {
+	/**
+	 * Header of the journal file.
+	 */
+	private static final long JOURNAL_MAGIC = 0x1533574DC74B6EEL;
+	/**
+	 * Size of the journal header: magic and snapshot id.
+	 */
+	private static final int JOURNAL_HEADER_SIZE = 16;
+	/**
+	 * Upper limit for a single journal frame, protects against
+	 * garbage in the length field.
+	 */
+	private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	/**
+	 * The current snapshot.
+	 */
+	private final File mFile;
+	/**
+	 * The previous snapshot, used if mFile is missing or corrupted.
+	 */
+	private final File mBackup;
+	/**
+	 * New snapshots are written to this file first.
+	 */
+	private final File mTemp;
+	/**
+	 * Changes made since the current snapshot was written.
+	 */
+	private final File mJournal;
+	/**
+	 * Handler of our writer thread.
+	 */
+	private final Handler mHandler;
+	/**
+	 * Size of the journal including all queued frames, -1 if
+	 * a new snapshot must be written before appending.
+	 */
+	private long mJournalSize = -1;
+	/**
+	 * Set by the writer thread if the last snapshot or frame could not
+	 * be written: queued frames do not belong to the journal on disk
+	 * and are dropped until the next snapshot was written.
+	 */
+	private boolean mJournalBroken;
+
+	/**
+	 * Creates a new state file
+	 *
+	 * @param dir The directory to store the files in.
+	 * @param name The name of the snapshot file, also used as prefix for all other files.
+	 */
+	StateFile(File dir, String name)
+	{
+		mFile = new File(dir, name);
+		mBackup = new File(dir, name + ".bak");
+		mTemp = new File(dir, name + ".tmp");
+		mJournal = new File(dir, name + ".journal");
+
+		HandlerThread thread = new HandlerThread("StateFileWriter", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Returns the last good snapshot, checking the backup if the current
+	 * snapshot is missing or corrupted.
+	 *
+	 * @return The snapshot without checksum or null if there is none.
+	 */
+	byte[] readSnapshot()
+	{
+		byte[] data = verify(readFile(mFile));
+		if (data == null) {
+			data = verify(readFile(mBackup));
+			if (data != null)
+				Log.w("VanillaMusic", "Recovered state from backup " + mBackup);
+		}
+		return data;
+	}
+
+	/**
+	 * Returns the raw contents of the current snapshot without verifying
+	 * the checksum. Only useful to migrate files written before checksums
+	 * were used.
+	 */
+	byte[] readUnverifiedSnapshot()
+	{
+		return readFile(mFile);
+	}
+
+	/**
+	 * Returns all intact frames of the journal belonging to the snapshot
+	 * with the given id. Reading stops at the first incomplete or corrupted
+	 * frame.
+	 *
+	 * @param id The id of the snapshot.
+	 */
+	ArrayList<byte[]> readJournal(long id)
+	{
+		ArrayList<byte[]> frames = new ArrayList<byte[]>();
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournal)));
+			try {
+				if (in.readLong() == JOURNAL_MAGIC && in.readLong() == id) {
+					while (true) {
+						int length = in.readInt();
+						if (length < 0 || length > MAX_FRAME_SIZE)
+							break;
+						byte[] frame = new byte[length];
+						in.readFully(frame);
+						if (in.readInt() != (int)checksum(frame, frame.length))
+							break;
+						frames.add(frame);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			// End of the journal, an incomplete last frame is ignored.
+		} catch (FileNotFoundException e) {
+			// No journal was written since the snapshot was created.
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to read state journal", e);
+		}
+
+		return frames;
+	}
+
+	/**
+	 * Queues a new snapshot and starts a new, empty journal for it.
+	 *
+	 * @param data The snapshot to write.
+	 * @param id The id of the snapshot, passed to readJournal() to
+	 * find the matching journal.
+	 */
+	synchronized void writeSnapshot(final byte[] data, final long id)
+	{
+		mJournalSize = JOURNAL_HEADER_SIZE;
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				storeSnapshot(data, id);
+			}
+		});
+	}
+
+	/**
+	 * Queues a frame to be appended to the journal, unless there is no
+	 * journal to append to or it would grow too large. writeSnapshot()
+	 * must be used if this returns false.
+	 *
+	 * The check and the append are done atomically: the writer thread
+	 * may invalidate the journal at any time.
+	 *
+	 * @param frame The data to append.
+	 * @param maxSize The maximum size of the journal, including queued frames.
+	 * @return true if the frame was queued.
+	 */
+	synchronized boolean tryAppendJournal(final byte[] frame, long maxSize)
+	{
+		if (mJournalSize < 0 || mJournalSize + 8 + frame.length > maxSize)
+			return false;
+
+		mJournalSize += 8 + frame.length;
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				storeFrame(frame);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Blocks until all queued writes are done, or the timeout expired.
+	 *
+	 * @param timeout The maximum time to wait, in milliseconds.
+	 */
+	void flush(long timeout)
+	{
+		final ConditionVariable done = new ConditionVariable();
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				done.open();
+			}
+		});
+		done.block(timeout);
+	}
+
+	/**
+	 * Stops the writer thread once all queued writes are done.
+	 * Nothing may be written after calling this.
+	 */
+	void close()
+	{
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			mHandler.getLooper().quitSafely();
+		} else {
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					mHandler.getLooper().quit();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes a snapshot and starts a new journal for it.
+	 * Runs on the writer thread.
+	 */
+	void storeSnapshot(byte[] data, long id)
+	{
+		try {
+			writeAtomically(data);
+
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(mJournal));
+			try {
+				out.writeLong(JOURNAL_MAGIC);
+				out.writeLong(id);
+			} finally {
+				out.close();
+			}
+			mJournalBroken = false;
+		} catch (IOException e) {
+			// The journal on disk still belongs to the previous snapshot,
+			// so frames queued for this one must not end up in it.
+			Log.w("VanillaMusic", "Failed to save state", e);
+			mJournalBroken = true;
+			invalidateJournal();
+		}
+	}
+
+	/**
+	 * Appends a frame to the journal, unless the journal is broken.
+	 * Runs on the writer thread.
+	 */
+	void storeFrame(byte[] frame)
+	{
+		if (mJournalBroken)
+			return;
+
+		try {
+			FileOutputStream out = new FileOutputStream(mJournal, true);
+			try {
+				// Single write: the frame is either complete or gets detected as truncated.
+				ByteArrayDataOutput buffer = new ByteArrayDataOutput(frame.length + 8);
+				buffer.writeInt(frame.length);
+				buffer.write(frame);
+				buffer.writeInt((int)checksum(frame, frame.length));
+				buffer.writeTo(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to append to state journal", e);
+			mJournalBroken = true;
+			invalidateJournal();
+		}
+	}
+
+	/**
+	 * Forces the next save to write a full snapshot
+	 */
+	private synchronized void invalidateJournal()
+	{
+		mJournalSize = -1;
+	}
+
+	/**
+	 * Writes data followed by its checksum to mTemp, syncs it and
+	 * replaces the current snapshot. The current snapshot is kept as backup.
+	 */
+	private void writeAtomically(byte[] data) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(mTemp);
+		try {
+			ByteArrayDataOutput buffer = new ByteArrayDataOutput(data.length + 4);
+			buffer.write(data);
+			buffer.writeInt((int)checksum(data, data.length));
+			buffer.writeTo(out);
+			out.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		if (mFile.exists() && !mFile.renameTo(mBackup))
+			throw new IOException("Failed to rename " + mFile + " to " + mBackup);
+		if (!mTemp.renameTo(mFile))
+			throw new IOException("Failed to rename " + mTemp + " to " + mFile);
+	}
+
+	/**
+	 * Returns the contents of given file or null if it cannot be read
+	 */
+	private static byte[] readFile(File file)
+	{
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				byte[] data = new byte[(int)file.length()];
+				new DataInputStream(in).readFully(data);
+				return data;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Checks the trailing checksum of given data
+	 *
+	 * @return The data without checksum, or null if the checksum did not match.
+	 */
+	private static byte[] verify(byte[] data)
+	{
+		if (data == null || data.length < 4)
+			return null;
+
+		int length = data.length - 4;
+		int stored = (data[length] & 0xFF) << 24 | (data[length + 1] & 0xFF) << 16 | (data[length + 2] & 0xFF) << 8 | (data[length + 3] & 0xFF);
+		if (stored != (int)checksum(data, length))
+			return null;
+
+		byte[] payload = new byte[length];
+		System.arraycopy(data, 0, payload, 0, length);
+		return payload;
+	}
+
+	/**
+	 * Returns the CRC32 of the first `length' bytes of data
+	 */
+	private static long checksum(byte[] data, int length)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		return crc.getValue();
+	}
+
+	/**
+	 * A DataOutputStream writing into a buffer of known size.
+	 */
+	private static class ByteArrayDataOutput extends DataOutputStream {
+		ByteArrayDataOutput(int size)
+		{
+			super(new ByteArrayOutputStream(size));
+		}
+
+		void writeTo(OutputStream target) throws IOException
+		{
+			flush();
+			((ByteArrayOutputStream)out).writeTo(target);
+		}
+	}
+}
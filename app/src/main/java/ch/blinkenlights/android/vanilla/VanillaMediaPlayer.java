@@ -18,6 +18,8 @@
 
 package ch.blinkenlights.android.vanilla;
 
+import ch.blinkenlights.android.medialibrary.GainValues;
+
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
@@ -32,6 +34,7 @@ public class VanillaMediaPlayer extends MediaPlayer {
 
 	private Context mContext;
 	private String mDataSource;
+	private GainValues mGainValues;
 	private boolean mHasNextMediaPlayer;
 	private float mReplayGain = Float.NaN;
 	private float mDuckingFactor = Float.NaN;
@@ -50,6 +53,7 @@ public class VanillaMediaPlayer extends MediaPlayer {
 	 */
 	public void reset() {
 		mDataSource = null;
+		mGainValues = null;
 		mHasNextMediaPlayer = false;
 		super.reset();
 	}
@@ -59,6 +63,7 @@ public class VanillaMediaPlayer extends MediaPlayer {
 	 */
 	public void release() {
 		mDataSource = null;
+		mGainValues = null;
 		mHasNextMediaPlayer = false;
 		super.release();
 	}
@@ -74,6 +79,7 @@ public class VanillaMediaPlayer extends MediaPlayer {
 		super.setDataSource(fis.getFD());
 		fis.close(); // this is OK according to the SDK documentation!
 		mDataSource = path;
+		mGainValues = null;
 	}
 
 	/**
@@ -83,6 +89,20 @@ public class VanillaMediaPlayer extends MediaPlayer {
 		return mDataSource;
 	}
 
+	/**
+	 * Sets the gain values of the current data source
+	 */
+	public void setGainValues(GainValues gain) {
+		mGainValues = gain;
+	}
+
+	/**
+	 * Returns the gain values of the current data source, null if unknown
+	 */
+	public GainValues getGainValues() {
+		return mGainValues;
+	}
+
 	/**
 	 * Sets the next media player data source
 	 */
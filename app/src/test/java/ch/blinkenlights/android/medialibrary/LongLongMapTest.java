@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongLongMapTest {
+	@Test
+	public void putGetRemove() {
+		LongLongMap map = new LongLongMap(0);
+		assertEquals(-1, map.get(42, -1));
+		assertFalse(map.containsKey(42));
+
+		map.put(42, 1);
+		map.put(-42, 2);
+		map.put(0, 3);
+		assertEquals(3, map.size());
+		assertEquals(1, map.get(42, -1));
+		assertEquals(2, map.get(-42, -1));
+		assertEquals(3, map.get(0, -1));
+
+		map.put(42, 4);
+		assertEquals(3, map.size());
+		assertEquals(4, map.get(42, -1));
+
+		map.remove(42);
+		map.remove(42);
+		map.remove(4711);
+		assertEquals(2, map.size());
+		assertFalse(map.containsKey(42));
+		assertEquals(-1, map.get(42, -1));
+		assertTrue(map.containsKey(-42));
+	}
+
+	@Test
+	public void growsBeyondExpectedSize() {
+		LongLongMap map = new LongLongMap(4);
+		for (long i = 1; i <= 10000; i++)
+			map.put(i * 7919, i);
+		assertEquals(10000, map.size());
+		for (long i = 1; i <= 10000; i++)
+			assertEquals(i, map.get(i * 7919, -1));
+	}
+
+	@Test
+	public void survivesChurn() {
+		// Many removals leave deleted slots behind, which must neither hide
+		// live keys nor fill up the table.
+		LongLongMap map = new LongLongMap(16);
+		HashMap<Long, Long> expected = new HashMap<>();
+		Random random = new Random(1);
+		for (int i = 0; i < 200000; i++) {
+			long key = random.nextInt(64);
+			if (random.nextBoolean()) {
+				map.put(key, i);
+				expected.put(key, (long)i);
+			} else {
+				map.remove(key);
+				expected.remove(key);
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		for (long key = 0; key < 64; key++)
+			assertEquals(expected.containsKey(key), map.containsKey(key));
+		for (Map.Entry<Long, Long> e : expected.entrySet())
+			assertEquals((long)e.getValue(), map.get(e.getKey(), -1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsReservedKey() {
+		new LongLongMap(1).put(Long.MIN_VALUE, 1);
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Runs EXPLAIN QUERY PLAN on the queries issued while browsing the
+ * library and fails if any of them scans a whole table.
+ *
+ * The schema is taken from MediaSchema and seeded with a library of
+ * SONG_COUNT songs, so that the planner sees realistic statistics.
+ */
+public class QueryPlanTest {
+	/**
+	 * Number of songs to seed the library with
+	 */
+	private static final int SONG_COUNT = 100000;
+	/**
+	 * Number of songs per album
+	 */
+	private static final int SONGS_PER_ALBUM = 10;
+	/**
+	 * Number of contributors
+	 */
+	private static final int CONTRIBUTOR_COUNT = 5000;
+	/**
+	 * Number of genres
+	 */
+	private static final int GENRE_COUNT = 100;
+	/**
+	 * Number of playlists, each holding PLAYLIST_SIZE songs
+	 */
+	private static final int PLAYLIST_COUNT = 20;
+	/**
+	 * Number of songs per playlist
+	 */
+	private static final int PLAYLIST_SIZE = 2000;
+	/**
+	 * Sort order used by most song queries, see MediaUtils
+	 */
+	private static final String DEFAULT_SORT = "artist_sort,album_sort,disc_num,song_num";
+	/**
+	 * The seeded database
+	 */
+	private static Connection sDb;
+
+	@BeforeClass
+	public static void createDatabase() throws Exception {
+		sDb = DriverManager.getConnection("jdbc:sqlite::memory:");
+		createSchema();
+		seed();
+	}
+
+	@AfterClass
+	public static void closeDatabase() throws SQLException {
+		sDb.close();
+	}
+
+	@Test
+	public void songById() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "_id=4711", DEFAULT_SORT);
+	}
+
+	@Test
+	public void songsByIdList() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "_id IN (1,2,3,4711)", DEFAULT_SORT);
+	}
+
+	@Test
+	public void songsOfAlbum() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "album_id=42", "album_sort,disc_num,song_num");
+	}
+
+	@Test
+	public void songsOfArtist() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "artist_id=42", DEFAULT_SORT);
+	}
+
+	@Test
+	public void songsOfAlbumArtist() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "albumartist_id=42", DEFAULT_SORT);
+	}
+
+	@Test
+	public void songsOfComposer() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "composer_id=42", DEFAULT_SORT);
+	}
+
+	@Test
+	public void songsOfGenre() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "_genre_id=42", DEFAULT_SORT);
+	}
+
+	@Test
+	public void albumsOfArtist() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_ALBUMS_ARTISTS, "artist_id=42", "album_sort");
+	}
+
+	@Test
+	public void albumsOfGenre() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_ALBUMS_ARTISTS, "_genre_id=42", "album_sort");
+	}
+
+	@Test
+	public void artistsOfGenre() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_ARTISTS, "_genre_id=42", "artist_sort");
+	}
+
+	@Test
+	public void songsOfPlaylist() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_PLAYLISTS_SONGS, "playlist_id=7", "position");
+	}
+
+	@Test
+	public void songByPath() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "path = ?", "path", "/music/a/song1.mp3");
+	}
+
+	@Test
+	public void songsInFolder() throws SQLException {
+		String[] range = MediaLibrary.getPathPrefixRange("/music/a/");
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS, "path >= ? AND path < ?", "path", range[0], range[1]);
+	}
+
+	@Test
+	public void songsByPathList() throws SQLException {
+		assertNoScan(MediaLibrary.TABLE_SONGS, "path IN (?,?,?)", null, "/music/a/song1.mp3", "/music/b/song2.mp3", "/music/c/song3.mp3");
+	}
+
+	@Test
+	public void searchSongs() throws SQLException {
+		assertNoScan(MediaLibrary.VIEW_SONGS_ALBUMS_ARTISTS,
+		             "_id IN (SELECT docid FROM "+MediaLibrary.TABLE_SEARCH+" WHERE "+MediaLibrary.TABLE_SEARCH+" MATCH ?)",
+		             DEFAULT_SORT, "title*");
+	}
+
+	@Test
+	public void topSongs() throws SQLException {
+		assertPlan(MediaLibraryBackend.buildTopSongsQuery(100));
+	}
+
+	/**
+	 * Builds the query the backend would run for given table, selection and
+	 * sort order and fails if its plan contains a full table scan.
+	 */
+	private static void assertNoScan(String table, String selection, String orderBy, String... args) throws SQLException {
+		String sql = "SELECT * FROM "+table+" WHERE "+MediaLibraryBackend.rewriteSelection(table, selection);
+		if (orderBy != null)
+			sql += " ORDER BY "+orderBy;
+		assertPlan(sql, args);
+	}
+
+	/**
+	 * Fails if the plan of given query contains a full table scan.
+	 * Virtual tables are exempt: their 'scan' is an index lookup.
+	 */
+	private static void assertPlan(String sql, String... args) throws SQLException {
+		ArrayList<String> plan = new ArrayList<>();
+		boolean scans = false;
+		try (PreparedStatement stmt = sDb.prepareStatement("EXPLAIN QUERY PLAN "+sql)) {
+			for (int i = 0; i < args.length; i++)
+				stmt.setString(i + 1, args[i]);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					String detail = rs.getString("detail");
+					plan.add(detail);
+					// Older versions print 'SCAN TABLE foo', newer ones 'SCAN foo'.
+					if (detail.startsWith("SCAN ") && !detail.contains("VIRTUAL TABLE") && !detail.startsWith("SCAN CONSTANT ROW"))
+						scans = true;
+				}
+			}
+		}
+		if (scans)
+			fail("full table scan in: "+sql+"\n  "+String.join("\n  ", plan));
+	}
+
+	/**
+	 * Creates all tables, indexes and views of MediaSchema.
+	 * Views may depend on each other, so they are retried until
+	 * all of them were created.
+	 */
+	private static void createSchema() throws Exception {
+		ArrayList<String> tables = new ArrayList<>();
+		ArrayList<String> indexes = new ArrayList<>();
+		ArrayList<String> views = new ArrayList<>();
+		for (Field field : MediaSchema.class.getDeclaredFields()) {
+			if (!Modifier.isStatic(field.getModifiers()) || field.getType() != String.class)
+				continue;
+			field.setAccessible(true);
+			String name = field.getName();
+			if (name.startsWith("DATABASE_CREATE_"))
+				tables.add((String)field.get(null));
+			else if (name.startsWith("INDEX_IDX_"))
+				indexes.add((String)field.get(null));
+			else if (name.startsWith("VIEW_CREATE_"))
+				views.add((String)field.get(null));
+		}
+
+		try (Statement stmt = sDb.createStatement()) {
+			for (String sql : tables)
+				stmt.execute(sql);
+			for (String sql : indexes)
+				stmt.execute(sql);
+			while (!views.isEmpty()) {
+				ArrayList<String> failed = new ArrayList<>();
+				for (String sql : views) {
+					try {
+						stmt.execute(sql);
+					} catch (SQLException e) {
+						failed.add(sql);
+					}
+				}
+				if (failed.size() == views.size())
+					throw new SQLException("unable to create views: "+failed);
+				views = failed;
+			}
+		}
+	}
+
+	/**
+	 * Fills the library and updates the planner statistics
+	 */
+	private static void seed() throws SQLException {
+		sDb.setAutoCommit(false);
+		try (PreparedStatement song = sDb.prepareStatement("INSERT INTO songs (_id, title, title_sort, song_num, disc_num, album_id, playcount, duration, path) VALUES (?,?,?,?,1,?,?,1000,?)");
+		     PreparedStatement search = sDb.prepareStatement("INSERT INTO "+MediaLibrary.TABLE_SEARCH+" (docid, title) VALUES (?,?)");
+		     PreparedStatement contributor = sDb.prepareStatement("INSERT INTO contributors_songs (role, _contributor_id, song_id) VALUES (?,?,?)");
+		     PreparedStatement genre = sDb.prepareStatement("INSERT INTO genres_songs (_genre_id, song_id) VALUES (?,?)")) {
+			for (int id = 1; id <= SONG_COUNT; id++) {
+				int album = (id - 1) / SONGS_PER_ALBUM + 1;
+				song.setInt(1, id);
+				song.setString(2, "title"+id);
+				song.setString(3, "title"+id);
+				song.setInt(4, id % SONGS_PER_ALBUM);
+				song.setInt(5, album);
+				song.setInt(6, id % 50 == 0 ? id % 7 : 0);
+				song.setString(7, "/music/"+(char)('a' + album % 26)+"/album"+album+"/song"+id+".mp3");
+				song.executeUpdate();
+
+				search.setInt(1, id);
+				search.setString(2, "title"+id);
+				search.executeUpdate();
+
+				int artist = album % CONTRIBUTOR_COUNT + 1;
+				insertContributor(contributor, MediaLibrary.ROLE_ARTIST, artist, id);
+				insertContributor(contributor, MediaLibrary.ROLE_ALBUMARTIST, artist, id);
+				if (id % 3 == 0)
+					insertContributor(contributor, MediaLibrary.ROLE_COMPOSER, id % CONTRIBUTOR_COUNT + 1, id);
+
+				genre.setInt(1, album % GENRE_COUNT + 1);
+				genre.setInt(2, id);
+				genre.executeUpdate();
+			}
+		}
+
+		try (PreparedStatement album = sDb.prepareStatement("INSERT INTO albums (_id, album, album_sort, primary_artist_id) VALUES (?,?,?,?)")) {
+			for (int id = 1; id <= SONG_COUNT / SONGS_PER_ALBUM; id++) {
+				album.setInt(1, id);
+				album.setString(2, "album"+id);
+				album.setString(3, "album"+id);
+				album.setInt(4, id % CONTRIBUTOR_COUNT + 1);
+				album.executeUpdate();
+			}
+		}
+
+		try (PreparedStatement contributor = sDb.prepareStatement("INSERT INTO contributors (_id, _contributor, _contributor_sort) VALUES (?,?,?)")) {
+			for (int id = 1; id <= CONTRIBUTOR_COUNT; id++) {
+				contributor.setInt(1, id);
+				contributor.setString(2, "artist"+id);
+				contributor.setString(3, "artist"+id);
+				contributor.executeUpdate();
+			}
+		}
+
+		try (PreparedStatement genre = sDb.prepareStatement("INSERT INTO genres (_id, _genre, _genre_sort) VALUES (?,?,?)")) {
+			for (int id = 1; id <= GENRE_COUNT; id++) {
+				genre.setInt(1, id);
+				genre.setString(2, "genre"+id);
+				genre.setString(3, "genre"+id);
+				genre.executeUpdate();
+			}
+		}
+
+		try (PreparedStatement playlist = sDb.prepareStatement("INSERT INTO playlists (_id, name, name_sort) VALUES (?,?,?)");
+		     PreparedStatement entry = sDb.prepareStatement("INSERT INTO playlists_songs (playlist_id, song_id, position) VALUES (?,?,?)")) {
+			for (int id = 1; id <= PLAYLIST_COUNT; id++) {
+				playlist.setInt(1, id);
+				playlist.setString(2, "playlist"+id);
+				playlist.setString(3, "playlist"+id);
+				playlist.executeUpdate();
+				for (int pos = 0; pos < PLAYLIST_SIZE; pos++) {
+					entry.setInt(1, id);
+					entry.setInt(2, (id * PLAYLIST_SIZE + pos * 37) % SONG_COUNT + 1);
+					entry.setInt(3, pos);
+					entry.executeUpdate();
+				}
+			}
+		}
+
+		sDb.commit();
+		sDb.setAutoCommit(true);
+		try (Statement stmt = sDb.createStatement()) {
+			stmt.execute("ANALYZE");
+		}
+	}
+
+	private static void insertContributor(PreparedStatement stmt, int role, int contributor, int song) throws SQLException {
+		stmt.setInt(1, role);
+		stmt.setInt(2, contributor);
+		stmt.setInt(3, song);
+		stmt.executeUpdate();
+	}
+}
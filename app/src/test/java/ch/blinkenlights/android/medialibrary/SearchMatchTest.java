@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.medialibrary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the normalization of the search index and the MATCH
+ * expressions built from user input.
+ */
+public class SearchMatchTest {
+	@Test
+	public void searchKeyIsLowerCased() {
+		assertEquals("the beatles", MediaLibrary.searchKeyFor("The Beatles"));
+	}
+
+	@Test
+	public void searchKeyStripsDiacritics() {
+		assertEquals("motorhead", MediaLibrary.searchKeyFor("Motörhead"));
+		assertEquals("sigur ros", MediaLibrary.searchKeyFor("Sigur Rós"));
+	}
+
+	@Test
+	public void searchKeyStripsPunctuation() {
+		assertEquals("ac dc", MediaLibrary.searchKeyFor("AC/DC"));
+		assertEquals("guns n roses", MediaLibrary.searchKeyFor("  Guns N' Roses!  "));
+	}
+
+	@Test
+	public void searchKeySplitsIdeographs() {
+		assertEquals("久 石 譲", MediaLibrary.searchKeyFor("久石譲"));
+		assertEquals("abc 音 楽 def", MediaLibrary.searchKeyFor("abc音楽def"));
+	}
+
+	@Test
+	public void searchKeyOfNullIsEmpty() {
+		assertEquals("", MediaLibrary.searchKeyFor(null));
+		assertEquals("", MediaLibrary.searchKeyFor("?!"));
+	}
+
+	@Test
+	public void matchAllColumns() {
+		assertEquals("beat* abbey*", MediaLibrary.buildSearchMatch(" Beat  Abbey ", null));
+	}
+
+	@Test
+	public void matchGivenColumns() {
+		String[] columns = { MediaLibrary.SearchColumns.TITLE, MediaLibrary.SearchColumns.ARTIST };
+		assertEquals("title:beat* OR artist:beat* title:abbey* OR artist:abbey*",
+		             MediaLibrary.buildSearchMatch("beat abbey", columns));
+	}
+
+	@Test
+	public void matchIdeographsAsPhrase() {
+		assertEquals("\"久 石*\"", MediaLibrary.buildSearchMatch("久石", null));
+	}
+
+	@Test
+	public void matchNeverContainsQuerySyntax() {
+		assertEquals("\"ac dc*\"", MediaLibrary.buildSearchMatch("AC/DC", null));
+		assertEquals("a* b*", MediaLibrary.buildSearchMatch("\"a\" -b", null));
+	}
+
+	@Test
+	public void nothingToMatch() {
+		assertNull(MediaLibrary.buildSearchMatch("", null));
+		assertNull(MediaLibrary.buildSearchMatch(" ?! ", null));
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2026 Adrian Ulrich <adrian@blinkenlights.ch>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package ch.blinkenlights.android.vanilla;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the on-disk framing of StateFile. The writer thread does not
+ * run in unit tests, so the writes are done by calling storeSnapshot()
+ * and storeFrame() directly.
+ */
+public class StateFileTest {
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDir;
+	private StateFile mState;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = mFolder.newFolder();
+		mState = new StateFile(mDir, "state");
+	}
+
+	@Test
+	public void snapshotRoundTrip() {
+		assertNull(mState.readSnapshot());
+		mState.storeSnapshot(bytes("snapshot"), 1);
+		assertArrayEquals(bytes("snapshot"), mState.readSnapshot());
+		assertEquals(0, mState.readJournal(1).size());
+	}
+
+	@Test
+	public void journalRoundTrip() {
+		mState.storeSnapshot(bytes("snapshot"), 1);
+		mState.storeFrame(bytes("one"));
+		mState.storeFrame(new byte[0]);
+		mState.storeFrame(bytes("three"));
+
+		ArrayList<byte[]> frames = mState.readJournal(1);
+		assertEquals(3, frames.size());
+		assertArrayEquals(bytes("one"), frames.get(0));
+		assertArrayEquals(new byte[0], frames.get(1));
+		assertArrayEquals(bytes("three"), frames.get(2));
+	}
+
+	@Test
+	public void journalOfOtherSnapshotIsIgnored() {
+		mState.storeSnapshot(bytes("snapshot"), 1);
+		mState.storeFrame(bytes("one"));
+		assertEquals(0, mState.readJournal(2).size());
+	}
+
+	@Test
+	public void newSnapshotStartsEmptyJournal() {
+		mState.storeSnapshot(bytes("first"), 1);
+		mState.storeFrame(bytes("one"));
+		mState.storeSnapshot(bytes("second"), 2);
+		assertArrayEquals(bytes("second"), mState.readSnapshot());
+		assertEquals(0, mState.readJournal(2).size());
+	}
+
+	@Test
+	public void truncatedFrameIsIgnored() throws IOException {
+		mState.storeSnapshot(bytes("snapshot"), 1);
+		mState.storeFrame(bytes("one"));
+		mState.storeFrame(bytes("two"));
+		truncate(journal(), 2);
+
+		ArrayList<byte[]> frames = mState.readJournal(1);
+		assertEquals(1, frames.size());
+		assertArrayEquals(bytes("one"), frames.get(0));
+	}
+
+	@Test
+	public void readingStopsAtCorruptedFrame() throws IOException {
+		mState.storeSnapshot(bytes("snapshot"), 1);
+		mState.storeFrame(bytes("one"));
+		mState.storeFrame(bytes("two"));
+		mState.storeFrame(bytes("three"));
+		// Header (16), first frame (4 + 3 + 4), length of the second frame (4)
+		flip(journal(), 16 + 11 + 4);
+
+		ArrayList<byte[]> frames = mState.readJournal(1);
+		assertEquals(1, frames.size());
+		assertArrayEquals(bytes("one"), frames.get(0));
+	}
+
+	@Test
+	public void garbageLengthIsIgnored() throws IOException {
+		mState.storeSnapshot(bytes("snapshot"), 1);
+		mState.storeFrame(bytes("one"));
+		flip(journal(), 16);
+		assertEquals(0, mState.readJournal(1).size());
+	}
+
+	@Test
+	public void corruptedSnapshotFallsBackToBackup() throws IOException {
+		mState.storeSnapshot(bytes("first"), 1);
+		mState.storeSnapshot(bytes("second"), 2);
+		flip(new File(mDir, "state"), 0);
+		assertArrayEquals(bytes("first"), mState.readSnapshot());
+	}
+
+	@Test
+	public void framesAreDroppedAfterFailedSnapshot() throws IOException {
+		mState.storeSnapshot(bytes("first"), 1);
+		mState.storeFrame(bytes("one"));
+
+		// A directory in place of the temporary file makes the next snapshot fail.
+		assertTrue(new File(mDir, "state.tmp").mkdir());
+		mState.storeSnapshot(bytes("second"), 2);
+		mState.storeFrame(bytes("two"));
+
+		assertFalse(mState.tryAppendJournal(bytes("queued"), Long.MAX_VALUE));
+		assertArrayEquals(bytes("first"), mState.readSnapshot());
+		ArrayList<byte[]> frames = mState.readJournal(1);
+		assertEquals(1, frames.size());
+		assertArrayEquals(bytes("one"), frames.get(0));
+
+		// The next successful snapshot repairs the journal.
+		assertTrue(new File(mDir, "state.tmp").delete());
+		mState.storeSnapshot(bytes("third"), 3);
+		mState.storeFrame(bytes("three"));
+		assertEquals(1, mState.readJournal(3).size());
+	}
+
+	@Test
+	public void appendRespectsLimit() {
+		assertFalse(mState.tryAppendJournal(bytes("one"), Long.MAX_VALUE));
+		mState.writeSnapshot(bytes("snapshot"), 1);
+		// Header (16) and one frame (4 + 3 + 4)
+		assertTrue(mState.tryAppendJournal(bytes("one"), 27));
+		assertFalse(mState.tryAppendJournal(bytes("two"), 27));
+	}
+
+	private File journal() {
+		return new File(mDir, "state.journal");
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes();
+	}
+
+	/**
+	 * Removes the last `count' bytes of given file
+	 */
+	private static void truncate(File file, int count) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - count);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Inverts the byte at given offset of a file
+	 */
+	private static void flip(File file, int offset) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			int b = raf.read();
+			raf.seek(offset);
+			raf.write(~b);
+		} finally {
+			raf.close();
+		}
+	}
+}